@@ -0,0 +1,91 @@
+package extension;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.kernel.api.exceptions.KernelException;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An embedded database in a temporary directory with the index procedures registered,
+ * so the benchmarks need no server and no network.
+ */
+public class BenchmarkDatabase implements AutoCloseable
+{
+    private final Path directory;
+    private final GraphDatabaseService db;
+
+    public BenchmarkDatabase() throws IOException, KernelException
+    {
+        directory = Files.createTempDirectory( "fulltext-bench" );
+        db = new GraphDatabaseFactory().newEmbeddedDatabase( new File( directory.toFile(), "graph.db" ) );
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency( Procedures.class )
+                .registerProcedure( FullTextIndex.class );
+    }
+
+    public GraphDatabaseService db()
+    {
+        return db;
+    }
+
+    /**
+     * Run a statement and consume all its rows.
+     *
+     * @return the number of rows
+     */
+    public long run( String statement, Map<String,Object> parameters, Blackhole blackhole )
+    {
+        long rows = 0;
+        try ( Result result = db.execute( statement, parameters ) )
+        {
+            while ( result.hasNext() )
+            {
+                blackhole.consume( result.next() );
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Run a statement outside of any measurement, such as setting up indexes.
+     */
+    public void execute( String statement, Map<String,Object> parameters )
+    {
+        try ( Result result = db.execute( statement, parameters ) )
+        {
+            while ( result.hasNext() )
+            {
+                result.next();
+            }
+        }
+    }
+
+    /**
+     * Drop the cached query results, so a benchmark measures the index rather than the cache.
+     */
+    public void clearResultCache()
+    {
+        IndexRegistry.of( db ).results().clear();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        db.shutdown();
+        try ( Stream<Path> files = Files.walk( directory ) )
+        {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+    }
+}
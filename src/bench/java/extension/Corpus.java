@@ -0,0 +1,123 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A synthetic, reproducible mix of Chinese and English text for the benchmarks.
+ *
+ * Words are drawn from small fixed vocabularies with a skewed distribution, so
+ * some terms are common and some rare, as in real text. The same seed always
+ * gives the same corpus and the same queries.
+ */
+public class Corpus
+{
+    static final String[] CHINESE = {
+            "数据库", "索引", "查询", "中文", "分词", "全文", "检索", "图谱", "节点", "关系",
+            "性能", "优化", "北京", "上海", "科技", "公司", "研究", "学习", "系统", "服务器",
+            "用户", "产品", "市场", "历史", "文化", "经济", "发展", "技术", "网络", "信息",
+            "人工智能", "搜索引擎", "知识", "问题", "方法", "分析", "模型", "结构", "设计", "应用"};
+    static final String[] ENGLISH = {
+            "graph", "index", "query", "lucene", "search", "node", "label", "score", "phrase", "token",
+            "database", "analyzer", "segment", "merge", "cache", "latency", "throughput", "cluster", "storage", "engine",
+            "neo4j", "java", "benchmark", "corpus", "document", "field", "term", "posting", "filter", "ranking"};
+
+    private static final int SAMPLES = 256;
+    private static final int TX_SIZE = 10_000;
+
+    private final Random random;
+    private final double chineseRatio;
+    // Adjacent word pairs taken from the generated text, for phrase queries that do match
+    private final List<String> phrases = new ArrayList<>();
+
+    public Corpus( long seed, double chineseRatio )
+    {
+        this.random = new Random( seed );
+        this.chineseRatio = chineseRatio;
+    }
+
+    public String word()
+    {
+        String[] vocabulary = random.nextDouble() < chineseRatio ? CHINESE : ENGLISH;
+        // Squaring skews towards the start of the vocabulary
+        double skewed = random.nextDouble();
+        return vocabulary[(int) (skewed * skewed * vocabulary.length)];
+    }
+
+    public String text( int words )
+    {
+        StringBuilder text = new StringBuilder();
+        String previous = null;
+        for ( int i = 0; i < words; i++ )
+        {
+            String word = word();
+            if ( i > 0 )
+            {
+                text.append( ' ' );
+            }
+            text.append( word );
+            if ( previous != null && phrases.size() < SAMPLES && random.nextInt( 16 ) == 0 )
+            {
+                phrases.add( previous + " " + word );
+            }
+            previous = word;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Create {@code nodesPerLabel} nodes with a short title and a longer body for every label.
+     */
+    public void seed( GraphDatabaseService db, List<String> labels, int nodesPerLabel, int wordsPerText )
+    {
+        for ( String label : labels )
+        {
+            int created = 0;
+            while ( created < nodesPerLabel )
+            {
+                try ( Transaction tx = db.beginTx() )
+                {
+                    for ( int i = 0; i < TX_SIZE && created < nodesPerLabel; i++, created++ )
+                    {
+                        Node node = db.createNode( Label.label( label ) );
+                        node.setProperty( "title", text( 4 ) );
+                        node.setProperty( "body", text( wordsPerText ) );
+                    }
+                    tx.success();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return single words to search for, common and rare alike
+     */
+    public String[] words()
+    {
+        String[] words = new String[SAMPLES];
+        for ( int i = 0; i < words.length; i++ )
+        {
+            words[i] = word();
+        }
+        return words;
+    }
+
+    /**
+     * @return quoted two word phrases that occur in the seeded text
+     */
+    public String[] phrases()
+    {
+        String[] quoted = new String[phrases.size()];
+        for ( int i = 0; i < quoted.length; i++ )
+        {
+            quoted[i] = "\"" + phrases.get( i ) + "\"";
+        }
+        return quoted;
+    }
+}
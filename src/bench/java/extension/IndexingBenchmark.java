@@ -0,0 +1,108 @@
+package extension;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Index build time for one label, from scratch every iteration: in one transaction
+ * with addNodesIndexByLabel, and in batches with bulkIndexByLabel for each analyzer.
+ * Nodes per second is {@code nodes} divided by the reported time.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class IndexingBenchmark
+{
+    private static final String LABEL = "Doc";
+
+    @Param( {"50000"} )
+    public int nodes;
+
+    @Param( {"30"} )
+    public int wordsPerText;
+
+    @Param( {"0.5"} )
+    public double chineseRatio;
+
+    private BenchmarkDatabase database;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        database = new BenchmarkDatabase();
+        new Corpus( 42, chineseRatio ).seed( database.db(), Collections.singletonList( LABEL ), nodes, wordsPerText );
+    }
+
+    @Setup( Level.Iteration )
+    public void dropIndex()
+    {
+        database.execute( "CALL chineseFulltextIndex.removeIndexByLabel({label})", parameters( "label", LABEL ) );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws Exception
+    {
+        database.close();
+    }
+
+    @Benchmark
+    public long addNodesIndexByLabel( Blackhole blackhole )
+    {
+        return database.run( "CALL chineseFulltextIndex.addNodesIndexByLabel({label})", parameters( "label", LABEL ), blackhole );
+    }
+
+    @Benchmark
+    public long bulkIndexByLabel( Bulk bulk, Blackhole blackhole )
+    {
+        Map<String,Object> config = new HashMap<>();
+        config.put( "batchSize", bulk.batchSize );
+        if ( !"standard".equals( bulk.analyzer ) )
+        {
+            // IK in smart or max_word mode
+            config.put( "mode", bulk.analyzer );
+        }
+        Map<String,Object> parameters = parameters( "label", LABEL );
+        parameters.put( "config", config );
+        return database.run( "CALL chineseFulltextIndex.bulkIndexByLabel({label}, [], {config})", parameters, blackhole );
+    }
+
+    /**
+     * The settings of the batched build only.
+     */
+    @State( Scope.Benchmark )
+    public static class Bulk
+    {
+        @Param( {"standard", "smart", "max_word"} )
+        public String analyzer;
+
+        @Param( {"10000"} )
+        public int batchSize;
+    }
+
+    private static Map<String,Object> parameters( String key, Object value )
+    {
+        Map<String,Object> parameters = new HashMap<>();
+        parameters.put( key, value );
+        return parameters;
+    }
+}
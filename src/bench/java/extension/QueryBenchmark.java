@@ -0,0 +1,154 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Query latency: a single index, the fan-out of queryByValue over every index,
+ * quoted phrases, and top-K limits.
+ *
+ * Every label gets its own index, built once per trial. Queries rotate through
+ * words and phrases of the corpus. Unless {@code cached} is set, every call
+ * starts by clearing the result cache, so the index itself is measured.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class QueryBenchmark
+{
+    @Param( {"4"} )
+    public int labels;
+
+    @Param( {"10000"} )
+    public int nodesPerLabel;
+
+    @Param( {"30"} )
+    public int wordsPerText;
+
+    @Param( {"0.5"} )
+    public double chineseRatio;
+
+    @Param( {"false"} )
+    public boolean cached;
+
+    private BenchmarkDatabase database;
+    private final List<String> labelNames = new ArrayList<>();
+    private String[] words;
+    private String[] phrases;
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        database = new BenchmarkDatabase();
+        for ( int i = 0; i < labels; i++ )
+        {
+            labelNames.add( "Doc" + i );
+        }
+        Corpus corpus = new Corpus( 42, chineseRatio );
+        corpus.seed( database.db(), labelNames, nodesPerLabel, wordsPerText );
+        for ( String label : labelNames )
+        {
+            database.execute( "CALL chineseFulltextIndex.bulkIndexByLabel({label}, ['title', 'body'])",
+                    parameters( "label", label ) );
+        }
+        words = corpus.words();
+        phrases = corpus.phrases();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws Exception
+    {
+        database.close();
+    }
+
+    @Benchmark
+    public long queryByProperty( Blackhole blackhole )
+    {
+        return run( "CALL chineseFulltextIndex.queryByProperty('Doc0', ['title', 'body'], {value})",
+                parameters( "value", nextWord() ), blackhole );
+    }
+
+    @Benchmark
+    public long queryByPhrase( Blackhole blackhole )
+    {
+        return run( "CALL chineseFulltextIndex.queryByProperty('Doc0', ['title', 'body'], {value})",
+                parameters( "value", nextPhrase() ), blackhole );
+    }
+
+    @Benchmark
+    public long queryByValueFanOut( Blackhole blackhole )
+    {
+        return run( "CALL chineseFulltextIndex.queryByValue({value})",
+                parameters( "value", nextWord() ), blackhole );
+    }
+
+    @Benchmark
+    public long queryByLabelTopK( TopKLimit topK, Blackhole blackhole )
+    {
+        Map<String,Object> parameters = parameters( "value", nextWord() );
+        parameters.put( "labels", labelNames );
+        parameters.put( "limit", topK.limit );
+        return run( "CALL chineseFulltextIndex.queryByLabelWithScoreAndLimit({labels}, {value}, 0.0, {limit})",
+                parameters, blackhole );
+    }
+
+    /**
+     * The limit, only a parameter of the top-K benchmark.
+     */
+    @State( Scope.Benchmark )
+    public static class TopKLimit
+    {
+        @Param( {"10", "100", "1000"} )
+        public long limit;
+    }
+
+    private long run( String query, Map<String,Object> parameters, Blackhole blackhole )
+    {
+        // In the measured call: a setup per invocation is unreliable at microsecond latencies,
+        // and clearing the few entries the previous calls left costs next to nothing
+        if ( !cached )
+        {
+            database.clearResultCache();
+        }
+        return database.run( query, parameters, blackhole );
+    }
+
+    private String nextWord()
+    {
+        return words[next++ & (words.length - 1)];
+    }
+
+    private String nextPhrase()
+    {
+        return phrases.length == 0 ? nextWord() : phrases[(next++ & Integer.MAX_VALUE) % phrases.length];
+    }
+
+    private static Map<String,Object> parameters( String key, Object value )
+    {
+        Map<String,Object> parameters = new HashMap<>();
+        parameters.put( key, value );
+        return parameters;
+    }
+}
@@ -0,0 +1,84 @@
+package extension;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.neo4j.index.impl.lucene.legacy.LuceneDataSource;
+
+/**
+ * Shared analyzer instances, one per analyzer class.
+ *
+ * Lucene analyzers are thread-safe, and by default keep one set of token stream
+ * components per thread that {@link Analyzer#tokenStream(String, String)} resets
+ * and reuses. So sharing a single instance gives every thread a reusable
+ * TokenStream instead of building (and leaking) a new analyzer per query.
+ */
+public class Analyzers
+{
+    public static final String STANDARD = StandardAnalyzer.class.getName();
+    public static final String CHINESE = "org.wltea.analyzer.lucene.IKAnalyzer";
+    public static final String CHINESE_SMART = IKSmartAnalyzer.class.getName();
+
+    // IK segmentation modes
+    public static final String SMART = "smart";
+    public static final String MAX_WORD = "max_word";
+
+    private static final Map<String,Analyzer> ANALYZERS = new ConcurrentHashMap<>();
+
+    private Analyzers()
+    {
+    }
+
+    /**
+     * @param className the analyzer class, as stored under "analyzer" in an index configuration
+     */
+    public static Analyzer get( String className )
+    {
+        return ANALYZERS.computeIfAbsent( className == null ? STANDARD : className, Analyzers::create );
+    }
+
+    /**
+     * @param mode {@link #SMART} or {@link #MAX_WORD}
+     * @return the IK analyzer class for the segmentation mode
+     */
+    public static String chinese( String mode )
+    {
+        switch ( mode )
+        {
+        case SMART:
+            return CHINESE_SMART;
+        case MAX_WORD:
+            return CHINESE;
+        default:
+            throw new IllegalArgumentException( "Unknown IK mode `" + mode + "`, expected " + SMART + " or " + MAX_WORD );
+        }
+    }
+
+    /**
+     * The analyzer an index was built with, falling back to the defaults of the legacy index types.
+     */
+    public static Analyzer forIndex( Map<String,String> config )
+    {
+        String analyzer = config.get( "analyzer" );
+        if ( analyzer != null )
+        {
+            return get( analyzer );
+        }
+        return "exact".equals( config.get( "type" ) ) ? LuceneDataSource.KEYWORD_ANALYZER
+                                                      : LuceneDataSource.LOWER_CASE_WHITESPACE_ANALYZER;
+    }
+
+    private static Analyzer create( String className )
+    {
+        try
+        {
+            return Class.forName( className ).asSubclass( Analyzer.class ).newInstance();
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new IllegalArgumentException( "Cannot create analyzer " + className, e );
+        }
+    }
+}
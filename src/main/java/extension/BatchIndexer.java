@@ -0,0 +1,283 @@
+package extension;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+
+/**
+ * Adds nodes to a legacy index in bounded batches, committing every batch in
+ * its own transaction.
+ *
+ * A procedure always runs inside the caller's transaction, and a nested
+ * {@code beginTx()} on the same thread just joins it. So the caller's thread
+ * only collects node ids, and each batch is written and committed on a
+ * dedicated batch thread. Memory stays bounded by the batch size no matter
+ * how many nodes the label has.
+ */
+public class BatchIndexer implements AutoCloseable
+{
+    public static final int DEFAULT_BATCH_SIZE = 10_000;
+
+    private final GraphDatabaseService db;
+    private final String indexName;
+    private final Map<String,String> config;
+    private final String[] propKeys;
+    private final int batchSize;
+    private final boolean removeExisting;
+    private final ExecutorService executor;
+    private boolean withLabels;
+    private Map<String,String> tuning = Collections.emptyMap();
+    private String checkpoint;
+    private Map<String,String> checkpointSettings;
+
+    // Only ever touched from the batch thread
+    private Index<Node> index;
+    private FieldMappings mappings;
+
+    private final Set<String> indexedKeys = ConcurrentHashMap.newKeySet();
+
+    private final long[] batch;
+    // Whether the node at the same position only leaves the index
+    private final boolean[] removals;
+    private int batchCount;
+    private int batchRemovals;
+    private long nodes;
+    private long removed;
+    private long batches;
+    private final long started = System.currentTimeMillis();
+
+    /**
+     * @param propKeys the properties to index, or {@code null} to index all properties of a node
+     */
+    public BatchIndexer( GraphDatabaseService db, String indexName, Map<String,String> config,
+                         String[] propKeys, int batchSize )
+    {
+        this.db = db;
+        this.indexName = indexName;
+        this.config = config;
+        this.propKeys = propKeys;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        // On a first build there is nothing to remove, so skip the lookup per node
+        this.removeExisting = db.index().existsForNodes( indexName );
+        this.batch = new long[this.batchSize];
+        this.removals = new boolean[this.batchSize];
+        this.executor = Executors.newSingleThreadExecutor( r -> {
+            Thread thread = new Thread( r, "chinese-fulltext-batch-" + indexName );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Also index the labels of every node, for the {@link GlobalIndex}.
+     */
+    public BatchIndexer withLabels()
+    {
+        this.withLabels = true;
+        return this;
+    }
+
+    /**
+     * Lucene writer settings for the index, applied as soon as it exists, see {@link IndexTuning}.
+     */
+    public BatchIndexer withTuning( Map<String,String> tuning )
+    {
+        this.tuning = tuning;
+        return this;
+    }
+
+    /**
+     * Store the highest node id of every batch in the index configuration under the key,
+     * and the settings along with it, see {@link IndexJobs}. Configuration changes take
+     * effect at once rather than with the transaction, so they are only made once the
+     * batch has committed.
+     */
+    public BatchIndexer withCheckpoint( String key, Map<String,String> settings )
+    {
+        this.checkpoint = key;
+        this.checkpointSettings = settings;
+        return this;
+    }
+
+    /**
+     * Index all nodes with the given label, then flush the last partial batch.
+     */
+    public BatchIndexer indexLabel( String label )
+    {
+        try ( ResourceIterator<Node> nodes = db.findNodes( Label.label( label ) ) )
+        {
+            while ( nodes.hasNext() )
+            {
+                add( nodes.next().getId() );
+            }
+        }
+        flush();
+        return this;
+    }
+
+    public void add( long nodeId )
+    {
+        queue( nodeId, false );
+    }
+
+    /**
+     * Take the node out of the index, in the same batches as the nodes added.
+     */
+    public void remove( long nodeId )
+    {
+        queue( nodeId, true );
+    }
+
+    private void queue( long nodeId, boolean removal )
+    {
+        removals[batchCount] = removal;
+        batch[batchCount++] = nodeId;
+        if ( removal )
+        {
+            batchRemovals++;
+        }
+        if ( batchCount == batchSize )
+        {
+            flush();
+        }
+    }
+
+    public void flush()
+    {
+        if ( batchCount == 0 )
+        {
+            return;
+        }
+        final int count = batchCount;
+        try
+        {
+            executor.submit( () -> writeBatch( count ) ).get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while indexing into `" + indexName + "`", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new RuntimeException( "Failed to index batch into `" + indexName + "`", e.getCause() );
+        }
+        nodes += count - batchRemovals;
+        removed += batchRemovals;
+        batches++;
+        batchCount = 0;
+        batchRemovals = 0;
+    }
+
+    private void writeBatch( int count )
+    {
+        long start = System.nanoTime();
+        long highest = -1;
+        try ( Transaction tx = db.beginTx() )
+        {
+            if ( index == null )
+            {
+                // An existing index keeps the analyzer it was built with
+                index = removeExisting ? db.index().forNodes( indexName ) : db.index().forNodes( indexName, config );
+                IndexTuning.configure( db, indexName, tuning );
+                IndexRegistry.of( db ).prepareWrites( db, indexName );
+                mappings = FieldMappings.of( db.index().getConfiguration( index ) );
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                highest = Math.max( highest, batch[i] );
+                Node node = db.getNodeById( batch[i] );
+                if ( removals[i] )
+                {
+                    index.remove( node );
+                    continue;
+                }
+                if ( removeExisting )
+                {
+                    index.remove( node );
+                }
+                Map<String,Object> properties = propKeys == null ? node.getAllProperties() : node.getProperties( propKeys );
+                for ( Map.Entry<String,Object> property : properties.entrySet() )
+                {
+                    if ( mappings.add( index, node, property.getKey(), property.getValue() ) )
+                    {
+                        indexedKeys.add( property.getKey() );
+                    }
+                }
+                if ( withLabels )
+                {
+                    GlobalIndex.addLabels( index, node );
+                }
+            }
+            IndexRegistry.of( db ).invalidate( indexName );
+            tx.success();
+        }
+        if ( checkpoint != null )
+        {
+            try ( Transaction tx = db.beginTx() )
+            {
+                db.index().setConfiguration( index, checkpoint, String.valueOf( highest ) );
+                for ( Map.Entry<String,String> setting : checkpointSettings.entrySet() )
+                {
+                    db.index().setConfiguration( index, setting.getKey(), setting.getValue() );
+                }
+                tx.success();
+            }
+        }
+        IndexRegistry.of( db ).metrics().indexed( indexName, count, System.nanoTime() - start );
+    }
+
+    /**
+     * @return the keys of all properties written so far
+     */
+    public Set<String> indexedKeys()
+    {
+        return indexedKeys;
+    }
+
+    /**
+     * @return the number of nodes written so far, not counting those removed
+     */
+    public long nodes()
+    {
+        return nodes;
+    }
+
+    public long removed()
+    {
+        return removed;
+    }
+
+    public long batches()
+    {
+        return batches;
+    }
+
+    public long elapsedMillis()
+    {
+        return System.currentTimeMillis() - started;
+    }
+
+    public double nodesPerSecond()
+    {
+        long elapsed = elapsedMillis();
+        return elapsed == 0 ? nodes * 1000.0 : nodes * 1000.0 / elapsed;
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,105 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Runs read tasks concurrently on a shared, bounded pool, each in its own
+ * transaction, and waits for them up to a deadline.
+ *
+ * Tasks still running at the deadline are abandoned rather than interrupted:
+ * interrupting a thread inside Lucene can close the index files under it. They
+ * finish in the background and their results are dropped.
+ */
+public class FanOut
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final ExecutorService POOL = new ThreadPoolExecutor( THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>( THREADS * 64 ), r -> {
+                Thread thread = new Thread( r, "chinese-fulltext-query-" + COUNTER.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            } );
+
+    private FanOut()
+    {
+    }
+
+    /**
+     * The results of the tasks that finished in time, and how many did not.
+     */
+    public static class Results<T>
+    {
+        public final List<T> completed = new ArrayList<>();
+        public int timedOut;
+    }
+
+    public static <T> Results<T> run( GraphDatabaseService db, List<Callable<T>> tasks, long timeoutMillis )
+    {
+        List<Future<T>> futures = new ArrayList<>( tasks.size() );
+        for ( Callable<T> task : tasks )
+        {
+            Callable<T> inTransaction = () -> {
+                try ( Transaction tx = db.beginTx() )
+                {
+                    T result = task.call();
+                    tx.success();
+                    return result;
+                }
+            };
+            try
+            {
+                futures.add( POOL.submit( inTransaction ) );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // Pool saturated, run it on the caller's thread (and in the caller's transaction)
+                FutureTask<T> inline = new FutureTask<>( task );
+                inline.run();
+                futures.add( inline );
+            }
+        }
+
+        Results<T> results = new Results<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        for ( Future<T> future : futures )
+        {
+            try
+            {
+                results.completed.add( future.get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS ) );
+            }
+            catch ( TimeoutException e )
+            {
+                future.cancel( false );
+                results.timedOut++;
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( "Interrupted while waiting for index queries", e );
+            }
+            catch ( ExecutionException e )
+            {
+                throw new RuntimeException( "Index query failed", e.getCause() );
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,260 @@
+package extension;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.ValueContext;
+
+/**
+ * How each property of an index is indexed and searched, kept in the index
+ * configuration as {@code field.<property>}, with {@code field.*} as the default.
+ *
+ * <ul>
+ * <li>{@link #TEXT}: analyzed with the index's analyzer (the default)</li>
+ * <li>{@link #KEYWORD}: matched as a whole, on the exact copy the index keeps under {@code <property>_e}</li>
+ * <li>{@link #NUMERIC} or {@link #NUMERIC_DOUBLE}: a double field, matched by value or range</li>
+ * <li>{@link #NUMERIC_LONG}: a long field, matched by value or range; numbers with a fraction are skipped</li>
+ * <li>{@link #SKIP}: not indexed at all</li>
+ * </ul>
+ *
+ * Every value of a numeric field is indexed with the encoding of its mapping,
+ * whatever Java type it has, and queries on the field are built from the
+ * mapping too, so an integer and a double bound find the same values. Values
+ * that aren't numbers are skipped.
+ */
+public class FieldMappings
+{
+    public static final String PREFIX = "field.";
+    public static final String DEFAULT = PREFIX + "*";
+
+    public static final String TEXT = "text";
+    public static final String KEYWORD = "keyword";
+    public static final String NUMERIC = "numeric";
+    public static final String NUMERIC_LONG = NUMERIC + ":long";
+    public static final String NUMERIC_DOUBLE = NUMERIC + ":double";
+    public static final String SKIP = "skip";
+
+    private static final FieldMappings NONE = new FieldMappings( new HashMap<>(), TEXT );
+
+    private final Map<String,String> types;
+    private final String defaultType;
+
+    private FieldMappings( Map<String,String> types, String defaultType )
+    {
+        this.types = types;
+        this.defaultType = defaultType;
+    }
+
+    /**
+     * @param config the index configuration, may be {@code null}
+     */
+    public static FieldMappings of( Map<String,String> config )
+    {
+        if ( config == null )
+        {
+            return NONE;
+        }
+        Map<String,String> types = new HashMap<>();
+        for ( Map.Entry<String,String> entry : config.entrySet() )
+        {
+            if ( entry.getKey().startsWith( PREFIX ) && !entry.getKey().equals( DEFAULT ) )
+            {
+                types.put( entry.getKey().substring( PREFIX.length() ), entry.getValue() );
+            }
+        }
+        if ( types.isEmpty() && !config.containsKey( DEFAULT ) )
+        {
+            return NONE;
+        }
+        return new FieldMappings( types, config.getOrDefault( DEFAULT, TEXT ) );
+    }
+
+    public static String validate( String type )
+    {
+        switch ( type )
+        {
+        case TEXT:
+        case KEYWORD:
+        case NUMERIC:
+        case NUMERIC_LONG:
+        case NUMERIC_DOUBLE:
+        case SKIP:
+            return type;
+        default:
+            throw new IllegalArgumentException( "Unknown field type `" + type + "`, expected one of " +
+                    TEXT + ", " + KEYWORD + ", " + NUMERIC + ", " + NUMERIC_LONG + ", " + NUMERIC_DOUBLE + ", " + SKIP );
+        }
+    }
+
+    public String typeOf( String property )
+    {
+        return types.getOrDefault( property, defaultType );
+    }
+
+    public boolean isNumeric( String property )
+    {
+        return typeOf( property ).startsWith( NUMERIC );
+    }
+
+    @Override
+    public String toString()
+    {
+        return defaultType + new TreeMap<>( types );
+    }
+
+    /**
+     * Index one property of a node the way its mapping says.
+     *
+     * @return whether anything was indexed
+     */
+    public boolean add( Index<Node> index, Node node, String property, Object value )
+    {
+        switch ( typeOf( property ) )
+        {
+        case SKIP:
+            return false;
+        case NUMERIC:
+        case NUMERIC_LONG:
+        case NUMERIC_DOUBLE:
+            boolean added = false;
+            if ( value.getClass().isArray() )
+            {
+                for ( int i = 0; i < Array.getLength( value ); i++ )
+                {
+                    added |= addNumber( index, node, property, Array.get( value, i ) );
+                }
+                return added;
+            }
+            return addNumber( index, node, property, value );
+        default:
+            index.add( node, property, value );
+            return true;
+        }
+    }
+
+    private boolean addNumber( Index<Node> index, Node node, String property, Object value )
+    {
+        Number number = value instanceof Number ? encode( property, (Number) value ) : null;
+        if ( number == null )
+        {
+            return false;
+        }
+        index.add( node, property, ValueContext.numeric( number ) );
+        return true;
+    }
+
+    /**
+     * A query for the text in a non-text field, or {@code null} if the text can't match the field.
+     */
+    public Query exact( String property, String text )
+    {
+        if ( isNumeric( property ) )
+        {
+            Number number = parse( text.trim() );
+            number = number == null ? null : encode( property, number );
+            return number == null ? null : range( property, number, number );
+        }
+        if ( KEYWORD.equals( typeOf( property ) ) )
+        {
+            return new TermQuery( new Term( property + "_e", text ) );
+        }
+        return null;
+    }
+
+    /**
+     * @param ranges property -> two element list of the inclusive bounds, either may be {@code null}
+     * @return the query restricted to nodes whose numeric properties fall in the ranges; the scores don't change
+     * @throws IllegalArgumentException if a property isn't numeric, or a range isn't two numbers or nulls
+     */
+    public Query filter( Query query, Map<String,? extends List<?>> ranges )
+    {
+        if ( ranges.isEmpty() )
+        {
+            return query;
+        }
+        BooleanQuery.Builder filtered = new BooleanQuery.Builder()
+                .setDisableCoord( true )
+                .add( query, BooleanClause.Occur.MUST );
+        for ( Map.Entry<String,? extends List<?>> range : ranges.entrySet() )
+        {
+            String property = range.getKey();
+            List<?> bounds = range.getValue();
+            if ( bounds.size() != 2 || !isBound( bounds.get( 0 ) ) || !isBound( bounds.get( 1 ) ) )
+            {
+                throw new IllegalArgumentException( "Range for `" + property + "` must be [min, max], numbers or null" );
+            }
+            if ( !isNumeric( property ) )
+            {
+                throw new IllegalArgumentException( "Property `" + property + "` is mapped as " + typeOf( property ) +
+                        ", ranges need " + NUMERIC + ", " + NUMERIC_LONG + " or " + NUMERIC_DOUBLE );
+            }
+            filtered.add( range( property, (Number) bounds.get( 0 ), (Number) bounds.get( 1 ) ), BooleanClause.Occur.FILTER );
+        }
+        return filtered.build();
+    }
+
+    private static boolean isBound( Object bound )
+    {
+        return bound == null || bound instanceof Number;
+    }
+
+    private Query range( String property, Number min, Number max )
+    {
+        if ( NUMERIC_LONG.equals( typeOf( property ) ) )
+        {
+            // Inclusive bounds with a fraction take in the whole numbers between them
+            return NumericRangeQuery.newLongRange( property,
+                    min == null ? null : (long) Math.ceil( min.doubleValue() ),
+                    max == null ? null : (long) Math.floor( max.doubleValue() ), true, true );
+        }
+        return NumericRangeQuery.newDoubleRange( property,
+                min == null ? null : min.doubleValue(), max == null ? null : max.doubleValue(), true, true );
+    }
+
+    /**
+     * @return the number in the encoding of the property's mapping, or {@code null} if it has none
+     */
+    private Number encode( String property, Number number )
+    {
+        if ( !NUMERIC_LONG.equals( typeOf( property ) ) )
+        {
+            return number.doubleValue();
+        }
+        if ( number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte )
+        {
+            return number.longValue();
+        }
+        double value = number.doubleValue();
+        return value == Math.rint( value ) && !Double.isInfinite( value ) ? (Number) (long) value : null;
+    }
+
+    private static Number parse( String text )
+    {
+        try
+        {
+            return Long.valueOf( text );
+        }
+        catch ( NumberFormatException e )
+        {
+            try
+            {
+                return Double.valueOf( text );
+            }
+            catch ( NumberFormatException notADouble )
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -1,19 +1,23 @@
 package extension;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.graphdb.security.AuthorizationViolationException;
 import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
@@ -33,6 +37,9 @@ public class FullTextIndex
 
     private static final Map<String, String>  EXACT = stringMap(IndexManager.PROVIDER, "lucene", "type", "exact");
 
+    // Built queries by analyzer, properties and value, so repeated searches skip analysis
+    private static final LruCache<String, Query> QUERIES = new LruCache<>(1024);
+
     public static final String NODE = "NODE";
     public static final String RELATIONSHIP = "RELATIONSHIP";
     // This field declares that we need a GraphDatabaseService
@@ -40,384 +47,1239 @@ public class FullTextIndex
     @Context
     public GraphDatabaseService db;
 
+    // The database behind db: db only works on the procedure's own thread, so the
+    // batch threads and workers that commit their own transactions are given this
+    @Context
+    public GraphDatabaseAPI database;
+
     // This gives us a log instance that outputs messages to the
     // standard log, normally found under `data/log/console.log`
     @Context
     public Log log;
 
+    // The procedure's transaction, which knows who is calling; a procedure that runs in
+    // Mode.DBMS would get no transaction, and so no db, at all
+    @Context
+    public KernelTransaction transaction;
+
 
-    // TODO: This is here as a workaround, because index().forNodes() is not read-only
-    @Procedure(value = "example.search", mode = Mode.WRITE)
+    // Searches resolve indexes through the IndexRegistry, which never creates
+    // an index, so they can run in read transactions (and on read replicas)
+    @Procedure(value = ProcedureNames.SEARCH, mode = Mode.READ)
     @Description("Execute lucene query in the given index, return found nodes")
     public Stream<SearchHit> search( @Name("label") String label,
                                      @Name("query") String query )
     {
-        String index = indexName( label );
-
-        // Avoid creating the index, if it's not there we won't be
-        // finding anything anyway!
-        if( !db.index().existsForNodes( index ))
-        {
-            // Just to show how you'd do logging
-            log.debug( "Skipping index query since index does not exist: `%s`", index );
-            return Stream.empty();
-        }
+        return call(ProcedureNames.SEARCH, query).track(() -> {
+            String index = indexName( label );
+
+            // Avoid creating the index, if it's not there we won't be
+            // finding anything anyway!
+            long started = System.nanoTime();
+            IndexHits<Node> hits = IndexRegistry.of( db ).query( db, index, query );
+            if( hits == null )
+            {
+                // Just to show how you'd do logging
+                log.debug( "Skipping index query since index does not exist: `%s`", index );
+                return Stream.empty();
+            }
+            QueryMetrics.current().searched( index, query, System.nanoTime() - started );
+            QueryMetrics.current().scanned( hits.size() );
 
-        // If there is an index, do a lookup and convert the result
-        // to our output record.
-        return db.index()
-                .forNodes( index )
-                .query( query )
-                .stream()
-                .map( SearchHit::new );
+            // If there is an index, convert the result to our output record.
+            return hits
+                    .stream()
+                    .map( SearchHit::new );
+        });
     }
 
-    @Procedure(value = "userdefined.index.ChineseFullIndexSearch", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.CHINESE_FULL_INDEX_SEARCH, mode = Mode.READ)
     @Description("call userdefined.index.ChineseFullIndexSearch(indexName, query, limit) yield node, 执行lucene全文搜索，返回前 {limit} 个结果")
     public Stream<ChineseHit> searchchinese(@Name("indexName") String indexName,
                                             @Name("query") String query,
                                             @Name("limit") long limit
     ){
-        if( !db.index().existsForNodes( indexName ))
-        {
-            // Just to show how you'd do logging
-            log.debug( "Skipping index query since index does not exist: `%s`", indexName );
-            return Stream.empty();
-        }
+        return call(ProcedureNames.CHINESE_FULL_INDEX_SEARCH, query).track(() -> {
+            ResultCache cache = IndexRegistry.of(db).results();
+            ResultCache.Key key = cache.key(db, "syntax", Collections.singleton(indexName), query, 0, limit);
+            ResultCache.Hits cached = cache.get(db, key);
+            if( cached == null )
+            {
+                long started = System.nanoTime();
+                NodeIdHits hits = IndexRegistry.of(db).queryIds(db, indexName, new QueryContext(query).sortByScore().top((int)limit));
+                if( hits == null )
+                {
+                    // Just to show how you'd do logging
+                    log.debug( "Skipping index query since index does not exist: `%s`", indexName );
+                    return Stream.empty();
+                }
+                try( Stream<NodeIdAndScore> ids = hits.stream(indexName) )
+                {
+                    cached = ResultCache.Hits.of(ids.collect(Collectors.toList()));
+                }
+                QueryMetrics.current().searched(indexName, query, System.nanoTime() - started);
+                QueryMetrics.current().scanned(cached.size());
+                cache.put(db, key, cached);
+            }
 
-        return db.index()
-                .forNodes(indexName, CHINESE_ANALYZER)
-                .query(new QueryContext(query).sortByScore().top((int)limit))
-                .stream()
-                .map(ChineseHit::new);
+            return cached
+                    .nodes(db)
+                    .map(hit -> new ChineseHit(hit.node));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.SEARCH_CHINESE_PAGE, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.searchChinesePage(indexName, query, pageSize, cursor) yield node, score, cursor, 分页执行lucene全文搜索，传入上一页最后一条结果的 cursor 取下一页")
+    public Stream<PageHit> searchChinesePage(@Name("indexName") String indexName,
+                                             @Name("query") String query,
+                                             @Name("pageSize") long pageSize,
+                                             @Name(value = "cursor", defaultValue = "") String cursor){
+        return call(ProcedureNames.SEARCH_CHINESE_PAGE, query).track(() -> {
+            Map<String, String> config = IndexRegistry.of(db).configuration(db, indexName);
+            if(config == null){
+                log.debug( "Skipping index query since index does not exist: `%s`", indexName );
+                return Stream.empty();
+            }
+            return page(indexName, parseSyntax(config, query), pageSize, cursor);
+        });
     }
 
 
-    @Procedure(value = "example.index", mode=Mode.WRITE)
+    @Procedure(value = ProcedureNames.INDEX, mode=Mode.WRITE)
     @Description("For the node with the given node-id, add properties for the provided keys to index per label")
     public void index( @Name("nodeId") long nodeId,
                        @Name("properties") List<String> propKeys )
     {
-        Node node = db.getNodeById(nodeId);
-        // Load all properties for the node once and in bulk,
-        // the resulting set will only contain those properties in `propKeys`
-        // that the node actually contains.
+        call(ProcedureNames.INDEX, null).run(() -> {
+            Node node = db.getNodeById(nodeId);
+            // Load all properties for the node once and in bulk,
+            // the resulting set will only contain those properties in `propKeys`
+            // that the node actually contains.
 
 
-        Set<Map.Entry<String,Object>> properties =
-                node.getProperties( propKeys.toArray( new String[0] ) ).entrySet();
-
-        // Index every label (this is just as an example, we could filter which labels to index)
-        for ( Label label : node.getLabels() )
-        {
-            Index<Node> index = db.index().forNodes( indexName( label.name() ), STANDARD_ANALYZER);
-
-            // In case the node is indexed before, remove all occurrences of it so
-            // we don't get old or duplicated data
-            index.remove( node );
+            Set<Map.Entry<String,Object>> properties =
+                    node.getProperties( propKeys.toArray( new String[0] ) ).entrySet();
 
-            // And then index all the properties
-            for ( Map.Entry<String,Object> property : properties )
+            // Index every label (this is just as an example, we could filter which labels to index)
+            for ( Label label : node.getLabels() )
             {
-                index.add( node, property.getKey(), property.getValue() );
+                Index<Node> index = openIndex( db.index(), indexName( label.name() ), STANDARD_ANALYZER );
+                FieldMappings mappings = FieldMappings.of( db.index().getConfiguration( index ) );
+
+                // In case the node is indexed before, remove all occurrences of it so
+                // we don't get old or duplicated data
+                index.remove( node );
+
+                // And then index all the properties
+                Set<String> indexedKeys = new LinkedHashSet<>();
+                for ( Map.Entry<String,Object> property : properties )
+                {
+                    if ( mappings.add( index, node, property.getKey(), property.getValue() ) )
+                    {
+                        indexedKeys.add( property.getKey() );
+                    }
+                }
+                PropertyCatalog.record( db, indexName( label.name() ), indexedKeys );
+                IndexRegistry.of( db ).invalidate( indexName( label.name() ) );
             }
-        }
+        });
     }
 
 
 
 
 
-    @Procedure(value = "userdefined.index.addChineseFullTextIndex", mode=Mode.WRITE)
-    @Description("For the node with the given node-id, add properties for the provided keys to index per label")
+    @Procedure(value = ProcedureNames.ADD_CHINESE_FULL_TEXT_INDEX, mode=Mode.WRITE)
+    @Description("call userdefined.index.addChineseFullTextIndex(indexName, labelName, properties, {mode: 'max_word', dictionary: '/path/ext.dic'}), 用 IKAnalyzer 为标签建立中文索引，mode 为 smart 或 max_word（默认），dictionary 为自定义词典文件；索引已存在时沿用原有的分词器")
     public void addIndex( @Name("indexName") String indexName,
                           @Name("labelName") String labelName,
-                          @Name("properties") List<String> propKeys )
+                          @Name("properties") List<String> propKeys,
+                          @Name(value = "config", defaultValue = "{}") Map<String,Object> config )
     {
-        Label label = Label.label(labelName);
-        ResourceIterator<Node> nodes = db.findNodes(label);
-
-
-        while(nodes.hasNext()){
-            Node node = nodes.next();
-            Set<Map.Entry<String,Object>> properties =
-                    node.getProperties( propKeys.toArray( new String[0] ) ).entrySet();
+        call(ProcedureNames.ADD_CHINESE_FULL_TEXT_INDEX, null).run(() -> {
+            indexLabel( indexName, labelName, propKeys.toArray( new String[0] ), true, chineseConfig( config ) );
+        });
+    }
 
-            // Index every label (this is just as an example, we could filter which labels to index)
+    /**
+     * The configuration of a new IK index, see {@link IKDictionary} for the custom dictionary.
+     *
+     * @param options {@code mode}, smart or max_word (the default), {@code dictionary}, a file of custom words,
+     *                and {@code stopwords}, a file of stop words
+     */
+    private static Map<String,String> chineseConfig( Map<String,Object> options )
+    {
+        Object mode = options.get( "mode" );
+        Object dictionary = options.get( "dictionary" );
+        Object stopwords = options.get( "stopwords" );
+        Map<String,String> config = new HashMap<>( CHINESE_ANALYZER );
+        config.put( "analyzer", Analyzers.chinese( mode == null ? Analyzers.MAX_WORD : mode.toString() ) );
+        if ( dictionary != null )
+        {
+            config.put( IKDictionary.DICTIONARY, dictionary.toString() );
+        }
+        if ( stopwords != null )
+        {
+            config.put( IKDictionary.STOPWORDS, stopwords.toString() );
+        }
+        // Before anything is segmented with them
+        IKDictionary.load( config );
+        return config;
+    }
 
-            Index<Node> index = db.index().forNodes( indexName, STANDARD_ANALYZER);
+    /**
+     * The index if it exists, with the analyzer it was built with, otherwise a new index with the configuration.
+     */
+    private static Index<Node> openIndex( IndexManager mgr, String indexName, Map<String,String> config )
+    {
+        return mgr.existsForNodes( indexName ) ? mgr.forNodes( indexName ) : mgr.forNodes( indexName, config );
+    }
 
-            // In case the node is indexed before, remove all occurrences of it so
-            // we don't get old or duplicated data
-            index.remove( node );
+    private void indexLabel( String indexName, String labelName, String[] propKeys, boolean createEmpty )
+    {
+        indexLabel( indexName, labelName, propKeys, createEmpty, STANDARD_ANALYZER );
+    }
 
-            // And then index all the properties
-            for ( Map.Entry<String,Object> property : properties )
+    /**
+     * Index the nodes of a label in the caller's transaction and record the indexed keys in the catalog.
+     *
+     * @param propKeys the properties to index, or {@code null} for all properties
+     * @param createEmpty whether to create the index even if no node has any of the properties
+     * @param config the configuration if the index has to be created
+     */
+    private void indexLabel( String indexName, String labelName, String[] propKeys, boolean createEmpty, Map<String,String> config )
+    {
+        long start = System.nanoTime();
+        long indexed = 0;
+        IndexManager mgr = db.index();
+        Index<Node> index = createEmpty || mgr.existsForNodes( indexName ) ? openIndex( mgr, indexName, config ) : null;
+        FieldMappings mappings = FieldMappings.of( index == null ? null : mgr.getConfiguration( index ) );
+        Set<String> indexedKeys = new LinkedHashSet<>();
+        try ( ResourceIterator<Node> nodes = db.findNodes( Label.label( labelName ) ) )
+        {
+            while ( nodes.hasNext() )
             {
-                index.add( node, property.getKey(), property.getValue() );
-            }
+                Node node = nodes.next();
+                Map<String,Object> properties = propKeys == null ? node.getAllProperties() : node.getProperties( propKeys );
+                if ( index == null )
+                {
+                    if ( properties.isEmpty() )
+                    {
+                        continue;
+                    }
+                    index = openIndex( mgr, indexName, config );
+                }
 
+                // In case the node is indexed before, remove all occurrences of it so
+                // we don't get old or duplicated data
+                index.remove( node );
+
+                // And then index all the properties
+                for ( Map.Entry<String,Object> property : properties.entrySet() )
+                {
+                    if ( mappings.add( index, node, property.getKey(), property.getValue() ) )
+                    {
+                        indexedKeys.add( property.getKey() );
+                    }
+                }
+                indexed++;
+            }
+        }
+        PropertyCatalog.record( db, indexName, indexedKeys );
+        if ( index != null )
+        {
+            IndexRegistry.of( db ).invalidate( indexName );
+            IndexRegistry.of( db ).metrics().indexed( indexName, indexed, System.nanoTime() - start );
         }
-
     }
 
-    @Procedure(value = "chineseFulltextIndex.queryByValue", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.QUERY_BY_VALUE, mode = Mode.READ)
     public Stream<NodeAndScore> queryByValue(@Name("value")String value){
+        return call(ProcedureNames.QUERY_BY_VALUE, value).track(() -> {
 
-        IndexManager mgr = db.index();
-        String[] indexes = mgr.nodeIndexNames();
-        return queryByLabel(Arrays.asList(indexes), value);
+            return hits(valueSearches(), value, Double.NEGATIVE_INFINITY, Long.MAX_VALUE).nodes(db);
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.queryByValueWithScoreAndLimit", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.QUERY_BY_VALUE_WITH_SCORE_AND_LIMIT, mode = Mode.READ)
     public Stream<NodeAndScore> queryByValue(@Name("value")String value,
                                              @Name("score")Double score,
                                              @Name("limit")Long limit){
+        return call(ProcedureNames.QUERY_BY_VALUE_WITH_SCORE_AND_LIMIT, value).track(() -> {
 
-        IndexManager mgr = db.index();
-        String[] indexes = mgr.nodeIndexNames();
-        return queryByLabel(Arrays.asList(indexes), value, score, limit);
+            return hits(valueSearches(), value, score, limit).nodes(db);
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.queryByLabel", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.QUERY_BY_VALUE_CONCURRENT, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryByValueConcurrent(value, score, limit, timeout), 并发查询所有索引并按分数合并，超时（毫秒）的索引会被跳过，返回部分结果")
+    public Stream<NodeAndScore> queryByValueConcurrent(@Name("value") String value,
+                                                       @Name(value = "score", defaultValue = "0.0") Double score,
+                                                       @Name(value = "limit", defaultValue = "100") Long limit,
+                                                       @Name(value = "timeout", defaultValue = "1000") Long timeout){
+        return call(ProcedureNames.QUERY_BY_VALUE_CONCURRENT, value).track(() -> {
+            List<IndexSearch> searches = valueSearches();
+            ResultCache cache = IndexRegistry.of(db).results();
+            ResultCache.Key key = cacheKey(cache, searches, value, score, limit);
+            ResultCache.Hits cached = cache.get(db, key);
+            if(cached != null){
+                return cached.nodes(db);
+            }
+
+            int top = (int) Math.min(limit, Integer.MAX_VALUE);
+            // The workers report to this call, they have none of their own
+            QueryMetrics.Call call = QueryMetrics.current();
+            List<Callable<List<NodeIdAndScore>>> tasks = new ArrayList<>();
+            for(IndexSearch search: searches){
+                tasks.add(() -> {
+                    long started = System.nanoTime();
+                    // Drain the hits inside the worker's transaction
+                    try(Stream<NodeIdAndScore> hits = search.run(database, value, score, top)){
+                        List<NodeIdAndScore> found = hits.collect(Collectors.toList());
+                        call.searched(search.index, null, System.nanoTime() - started);
+                        call.scanned(found.size());
+                        return found;
+                    }
+                });
+            }
+            FanOut.Results<List<NodeIdAndScore>> results = FanOut.run(database, tasks, timeout);
+            TopK<NodeIdAndScore> topK = new TopK<>(limit, hit -> hit.score);
+            for(List<NodeIdAndScore> hits: results.completed){
+                hits.forEach(topK::offer);
+            }
+            ResultCache.Hits hits = ResultCache.Hits.of(topK.stream().collect(Collectors.toList()));
+            if(results.timedOut > 0){
+                log.warn("queryByValueConcurrent: %d of %d indexes timed out after %dms, returning partial results for `%s`",
+                        results.timedOut, tasks.size(), timeout, value);
+            }else{
+                // Partial results are never cached
+                cache.put(db, key, hits);
+            }
+            return hits.nodes(db);
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_BY_LABEL, mode = Mode.READ)
     public Stream<NodeAndScore> queryByLabel(@Name("labels") List<String> labels,
                                              @Name("value") String value
                                              ){
-        Stream<NodeAndScore> resultStream = Stream.empty();
-        for(String index: labels){
-            Iterable<String> propKeys = db.findNodes(Label.label(index)).next().getPropertyKeys();
-            List<String> listPropKeys = new ArrayList<>();
-            for(String propKey: propKeys){
-                listPropKeys.add(propKey);
-            }
-            Stream<NodeAndScore> aResult = queryByProperty(index, listPropKeys, value);
-            resultStream = Stream.concat(resultStream, aResult);
-        }
-        return resultStream.sorted(Comparator.comparing(NodeAndScore::getScore).reversed());
+        return call(ProcedureNames.QUERY_BY_LABEL, value).track(() -> {
+            return hits(labelSearches(labels), value, Double.NEGATIVE_INFINITY, Long.MAX_VALUE).nodes(db);
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.queryByLabelWithScoreAndLimit", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.QUERY_BY_LABEL_WITH_SCORE_AND_LIMIT, mode = Mode.READ)
     public Stream<NodeAndScore> queryByLabel(@Name("labels") List<String> labels,
                                              @Name("value") String value,
                                              @Name("score") Double score,
                                              @Name("limit") Long limit
     ){
-        Stream<NodeAndScore> resultStream = Stream.empty();
-        for(String index: labels){
-            Iterable<String> propKeys = db.findNodes(Label.label(index)).next().getPropertyKeys();
-            List<String> listPropKeys = new ArrayList<>();
-            for(String propKey: propKeys){
-                listPropKeys.add(propKey);
+        return call(ProcedureNames.QUERY_BY_LABEL_WITH_SCORE_AND_LIMIT, value).track(() -> {
+            return hits(labelSearches(labels), value, score, limit).nodes(db);
+        });
+    }
+
+    /**
+     * The best {@code limit} hits across the searches, from the result cache when it still holds them.
+     */
+    private ResultCache.Hits hits(List<IndexSearch> searches, String value, double score, long limit){
+        ResultCache cache = IndexRegistry.of(db).results();
+        ResultCache.Key key = cacheKey(cache, searches, value, score, limit);
+        ResultCache.Hits cached = cache.get(db, key);
+        if(cached != null){
+            return cached;
+        }
+        TopK<NodeIdAndScore> topK = new TopK<>(limit, hit -> hit.score);
+        int top = limit == Long.MAX_VALUE ? 0 : (int) Math.min(limit, Integer.MAX_VALUE);
+        for(IndexSearch search: searches){
+            // Only the best `limit` hits of each index can make it into the overall top `limit`
+            try(Stream<NodeIdAndScore> hits = search.run(db, value, score, top)){
+                hits.forEach(topK::offer);
+            }
+        }
+        ResultCache.Hits hits = ResultCache.Hits.of(topK.stream().collect(Collectors.toList()));
+        cache.put(db, key, hits);
+        return hits;
+    }
+
+    private ResultCache.Key cacheKey(ResultCache cache, List<IndexSearch> searches, String value, double score, long limit){
+        List<String> indexes = new ArrayList<>();
+        StringBuilder query = new StringBuilder(value);
+        for(IndexSearch search: searches){
+            indexes.add(search.index);
+            if(search.labels != null){
+                query.append("\u0000").append(new TreeSet<>(search.labels));
             }
-            Stream<NodeAndScore> aResult = queryByProperty(index, listPropKeys, value, score);
-            resultStream = Stream.concat(resultStream, aResult);
         }
-        return resultStream.sorted(Comparator.comparing(NodeAndScore::getScore).reversed()).limit(limit);
+        return cache.key(db, "value", indexes, query.toString(), score, limit);
     }
 
+    /**
+     * Search the given labels: labels covered by the global index in one filtered query on it,
+     * the others each in the index of the same name.
+     */
+    private List<IndexSearch> labelSearches(List<String> labels){
+        Set<String> covered = GlobalIndex.coveredLabels(db);
+        List<IndexSearch> searches = new ArrayList<>();
+        List<String> globalLabels = new ArrayList<>();
+        for(String label: new LinkedHashSet<>(labels)){
+            if(label.equals(GlobalIndex.NAME)){
+                continue;
+            }
+            if(GlobalIndex.covers(covered, label)){
+                globalLabels.add(label);
+            }else{
+                searches.add(new IndexSearch(label, null));
+            }
+        }
+        if(!globalLabels.isEmpty()){
+            searches.add(new IndexSearch(GlobalIndex.NAME, globalLabels));
+        }
+        return searches;
+    }
+
+    /**
+     * Search the whole graph: the global index when there is one, and every index whose label it doesn't cover.
+     */
+    private List<IndexSearch> valueSearches(){
+        Set<String> covered = GlobalIndex.coveredLabels(db);
+        List<IndexSearch> searches = new ArrayList<>();
+        for(String index: db.index().nodeIndexNames()){
+            if(index.equals(GlobalIndex.NAME) || !GlobalIndex.covers(covered, index)){
+                searches.add(new IndexSearch(index, null));
+            }
+        }
+        return searches;
+    }
+
+    /**
+     * One index to query, optionally restricted to nodes with some labels.
+     */
+    private class IndexSearch{
+        final String index;
+        final List<String> labels;
+
+        IndexSearch(String index, List<String> labels){
+            this.index = index;
+            this.labels = labels;
+        }
 
-    @Procedure(value = "chineseFulltextIndex.queryByProperty", mode = Mode.WRITE)
-    public Stream<NodeAndScore> queryByProperty(@Name("label") String label,
-                                                @Name("propKeys") List<String> propKeys,
-                                                @Name("value") String value){
-        IndexManager mgr = db.index();
-        boolean flag = value.startsWith("\"") ? true:false;
         /**
-         * 查询之前先进行分词
+         * @param db the procedure's db on its own thread, the {@link #database} on a worker
          */
-        if(!flag){
-            Analyzer analyzer = new StandardAnalyzer();
-            TokenStream tokenStream = analyzer.tokenStream("content", value);
-            tokenStream.addAttribute(TermToBytesRefAttribute.class);
-            OffsetAttribute offsetAttribute = tokenStream.addAttribute(OffsetAttribute.class);
-            StringBuffer offsetValue = new StringBuffer();
-            try {
-                tokenStream.reset();
-                while (tokenStream.incrementToken()){
-                    offsetValue.append("+");
-                    offsetValue.append(offsetAttribute.toString());
-                    offsetValue.append(" ");
-                }
-                tokenStream.end();
-                tokenStream.close();
-            }catch (Exception e){
-                e.printStackTrace();
-            }
-            value = offsetValue.toString();
-        }
-        StringBuilder query = new StringBuilder();
-        for(String propKey: propKeys){
-            query.append(propKey + ":(" + value + ") ");
-        }
-        Index<Node> fulltextIndex = mgr.forNodes(label);
-        IndexHits<Node> result = fulltextIndex.query(new QueryContext(query).defaultOperator(QueryParser.Operator.OR));
-        if(flag){
-            String queryString = value.replace("\"", "");
-            Stream<NodeAndScore> aResult = result
-                    .map(res -> new NodeAndScore(res, userDefinedScore(res, queryString)))
-                    .stream();
-            return  aResult;
-        }else{
-            Stream<NodeAndScore> aResult = result
-                    .map(res -> new NodeAndScore(res, result.currentScore()))
-                    .stream();
-            return  aResult;
+        Stream<NodeIdAndScore> run(GraphDatabaseService db, String value, double score, int top){
+            List<String> propKeys = PropertyCatalog.keys(db, index);
+            if(propKeys.isEmpty()){
+                return Stream.empty();
+            }
+            return queryIdsByProperty(db, index, propKeys, value, score, top, labels);
         }
+    }
+
+    /**
+     * The property keys to search in an index, from its property catalog.
+     */
+    private List<String> propertyKeys(String index){
+        return PropertyCatalog.keys(db, index);
+    }
 
+    @Procedure(value = ProcedureNames.QUERY_BY_PROPERTY, mode = Mode.READ)
+    public Stream<NodeAndScore> queryByProperty(@Name("label") String label,
+                                                @Name("propKeys") List<String> propKeys,
+                                                @Name("value") String value){
+        return call(ProcedureNames.QUERY_BY_PROPERTY, value).track(() -> {
+            return queryByProperty(label, propKeys, value, Double.NEGATIVE_INFINITY, 0);
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.queryByPropertyWithScore", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.QUERY_BY_PROPERTY_WITH_SCORE, mode = Mode.READ)
     public Stream<NodeAndScore> queryByProperty(@Name("label") String label,
                                                 @Name("propKeys") List<String> propKeys,
                                                 @Name("value") String value,
                                                 @Name(value = "score", defaultValue = "0.0") Double score){
-        IndexManager mgr = db.index();
+        return call(ProcedureNames.QUERY_BY_PROPERTY_WITH_SCORE, value).track(() -> {
+            return queryByProperty(label, propKeys, value, score, 0);
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_BY_PROPERTY_PAGE, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryByPropertyPage(label, propKeys, value, pageSize, cursor) yield node, score, cursor, 分页查询，传入上一页最后一条结果的 cursor 取下一页")
+    public Stream<PageHit> queryByPropertyPage(@Name("label") String label,
+                                               @Name("propKeys") List<String> propKeys,
+                                               @Name("value") String value,
+                                               @Name("pageSize") long pageSize,
+                                               @Name(value = "cursor", defaultValue = "") String cursor){
+        return call(ProcedureNames.QUERY_BY_PROPERTY_PAGE, value).track(() -> {
+            Map<String, String> config = IndexRegistry.of(db).configuration(db, label);
+            if(config == null){
+                log.debug( "Skipping index query since index does not exist: `%s`", label );
+                return Stream.empty();
+            }
+            boolean flag = value.startsWith("\"") ? true:false;
+            return page(label, parseQuery(config, propKeys, value, flag), pageSize, cursor);
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_BY_PROPERTY_IN_RANGE, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryByPropertyInRange(label, propKeys, value, {price: [10, 100], year: [2000, null]}), 全文查询并按数值属性区间过滤，区间两端都包含，null 表示不限；数值属性需先用 mapFields 映射为 numeric")
+    public Stream<NodeAndScore> queryByPropertyInRange(@Name("label") String label,
+                                                       @Name("propKeys") List<String> propKeys,
+                                                       @Name("value") String value,
+                                                       @Name(value = "ranges", defaultValue = "{}") Map<String, Object> ranges){
+        return call(ProcedureNames.QUERY_BY_PROPERTY_IN_RANGE, value).track(() -> {
+            Map<String, String> config = IndexRegistry.of(db).configuration(db, label);
+            if(config == null){
+                log.debug( "Skipping index query since index does not exist: `%s`", label );
+                return Stream.empty();
+            }
+            Map<String, List<?>> bounds = new HashMap<>();
+            for(Map.Entry<String, Object> range: ranges.entrySet()){
+                if(!(range.getValue() instanceof List)){
+                    throw new IllegalArgumentException("Range for `" + range.getKey() + "` must be [min, max]");
+                }
+                bounds.put(range.getKey(), (List<?>) range.getValue());
+            }
+            boolean flag = value.startsWith("\"") ? true:false;
+            Query query = FieldMappings.of(config).filter(parseQuery(config, propKeys, value, flag), bounds);
+            long started = System.nanoTime();
+            IndexHits<Node> result = IndexRegistry.of(db).query(db, label, new QueryContext(query));
+            if(result == null){
+                log.debug( "Skipping index query since index does not exist: `%s`", label );
+                return Stream.empty();
+            }
+            QueryMetrics.current().searched(label, query, System.nanoTime() - started);
+            QueryMetrics.current().scanned(result.size());
+            return result.stream().map(res -> new NodeAndScore(res, (double)result.currentScore()));
+        });
+    }
+
+    /**
+     * One page of hits, in score order with ties broken by node id, starting after the cursor.
+     * Earlier pages are skipped inside the index, so any page costs about what the first does.
+     */
+    private Stream<PageHit> page(String index, Query query, long pageSize, String cursor){
+        PageCursor after = PageCursor.decode(cursor);
+        QueryContext queryContext = new QueryContext(after == null ? query : after.after(query))
+                .sort(PageCursor.ORDER)
+                .top((int) Math.min(pageSize, Integer.MAX_VALUE));
+        long started = System.nanoTime();
+        IndexHits<Node> hits = IndexRegistry.of(db).query(db, index, queryContext);
+        if(hits == null){
+            log.debug( "Skipping index query since index does not exist: `%s`", index );
+            return Stream.empty();
+        }
+        QueryMetrics.current().searched(index, query, System.nanoTime() - started);
+        QueryMetrics.current().scanned(hits.size());
+        return hits.stream().map(node -> new PageHit(node, hits.currentScore()));
+    }
+
+    @Procedure(value = ProcedureNames.SUGGEST, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.suggest(indexName, prefix, k) yield term, weight, 输入提示：返回索引中以 prefix 开头、包含该词的节点最多的前 k 个词，不查询节点")
+    public Stream<Suggestion> suggest(@Name("indexName") String indexName,
+                                                @Name("prefix") String prefix,
+                                                @Name(value = "k", defaultValue = "10") long k){
+        return call(ProcedureNames.SUGGEST, prefix).track(() -> {
+            Suggester suggester = IndexRegistry.of(db).suggester(database, indexName);
+            if(suggester == null){
+                log.debug( "Skipping suggestions since index does not exist: `%s`", indexName );
+                return Stream.empty();
+            }
+            return suggester.suggest(prefix, (int) Math.min(k, Integer.MAX_VALUE)).stream();
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_IDS_BY_PROPERTY, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryIdsByProperty(label, propKeys, value, score) yield nodeId, score, index, 只返回节点 id，不加载节点")
+    public Stream<NodeIdAndScore> queryIdsByProperty(@Name("label") String label,
+                                                     @Name("propKeys") List<String> propKeys,
+                                                     @Name("value") String value,
+                                                     @Name(value = "score", defaultValue = "0.0") Double score){
+        return call(ProcedureNames.QUERY_IDS_BY_PROPERTY, value).track(() -> {
+            return queryIdsByProperty(label, propKeys, value, score, 0);
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_IDS_BY_LABEL, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryIdsByLabel(labels, value, score, limit) yield nodeId, score, index, 只返回节点 id，不加载节点")
+    public Stream<NodeIdAndScore> queryIdsByLabel(@Name("labels") List<String> labels,
+                                                  @Name("value") String value,
+                                                  @Name(value = "score", defaultValue = "0.0") Double score,
+                                                  @Name(value = "limit", defaultValue = "100") Long limit){
+        return call(ProcedureNames.QUERY_IDS_BY_LABEL, value).track(() -> {
+            return hits(labelSearches(labels), value, score, limit).ids();
+        });
+    }
+
+    @Procedure(value = ProcedureNames.QUERY_IDS_BY_VALUE, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.queryIdsByValue(value, score, limit) yield nodeId, score, index, 查询所有索引，只返回节点 id，不加载节点")
+    public Stream<NodeIdAndScore> queryIdsByValue(@Name("value") String value,
+                                                  @Name(value = "score", defaultValue = "0.0") Double score,
+                                                  @Name(value = "limit", defaultValue = "100") Long limit){
+        return call(ProcedureNames.QUERY_IDS_BY_VALUE, value).track(() -> {
+            return hits(valueSearches(), value, score, limit).ids();
+        });
+    }
+
+    /**
+     * @param top when positive, only the {@code top} best hits are fetched from the index.
+     */
+    private Stream<NodeAndScore> queryByProperty(String label, List<String> propKeys, String value, double score, int top){
+        Map<String, String> config = IndexRegistry.of(db).configuration(db, label);
+        if(config == null){
+            log.debug( "Skipping index query since index does not exist: `%s`", label );
+            return Stream.empty();
+        }
+        QueryContext query = propertyQuery(config, propKeys, value, top);
+        long started = System.nanoTime();
+        IndexHits<Node> result = IndexRegistry.of(db).query(db, label, query);
+        if(result == null){
+            log.debug( "Skipping index query since index does not exist: `%s`", label );
+            return Stream.empty();
+        }
+        QueryMetrics.current().searched(label, query.getQueryOrQueryObject(), System.nanoTime() - started);
+        QueryMetrics.current().scanned(result.size());
+        // Quoted values are scored by the index too, 1 / length of the property holding the phrase
+        Stream<NodeAndScore> aResult = result
+                .stream()
+                .map(res -> new NodeAndScore(res, (double)result.currentScore()))
+                .filter(res -> res.getScore() > score);
+        return  aResult;
+    }
+
+    /**
+     * Like {@link #queryByProperty(String, List, String, double, int)}, but the hits stay
+     * node ids and no node is looked up.
+     */
+    private Stream<NodeIdAndScore> queryIdsByProperty(String label, List<String> propKeys, String value, double score, int top){
+        return queryIdsByProperty(db, label, propKeys, value, score, top, null);
+    }
+
+    /**
+     * @param labels when not {@code null}, only nodes with one of these labels, see {@link GlobalIndex}
+     */
+    private Stream<NodeIdAndScore> queryIdsByProperty(GraphDatabaseService db, String label, List<String> propKeys, String value, double score, int top, List<String> labels){
+        Map<String, String> config = IndexRegistry.of(db).configuration(db, label);
+        if(config == null){
+            log.debug( "Skipping index query since index does not exist: `%s`", label );
+            return Stream.empty();
+        }
         boolean flag = value.startsWith("\"") ? true:false;
-        /**
-         * 查询之前先进行分词
-         */
-        if(!flag) {
-            Analyzer analyzer = new StandardAnalyzer();
-            TokenStream tokenStream = analyzer.tokenStream("content", value);
-            tokenStream.addAttribute(TermToBytesRefAttribute.class);
-            OffsetAttribute offsetAttribute = tokenStream.addAttribute(OffsetAttribute.class);
-            StringBuffer offsetValue = new StringBuffer();
+        Query query = parseQuery(config, propKeys, value, flag);
+        if(labels != null){
+            query = GlobalIndex.filter(query, labels);
+        }
+        long started = System.nanoTime();
+        NodeIdHits result = IndexRegistry.of(db).queryIds(db, label, topByScore(query, top));
+        if(result == null){
+            log.debug( "Skipping index query since index does not exist: `%s`", label );
+            return Stream.empty();
+        }
+        QueryMetrics.Call call = QueryMetrics.current();
+        call.searched(label, query, System.nanoTime() - started);
+        return result.stream(label).peek(res -> call.scanned(1)).filter(res -> res.score > score);
+    }
+
+    /**
+     * Parse Lucene query syntax the way the index itself would, once per distinct query.
+     */
+    private static Query parseSyntax(Map<String, String> config, String query){
+        String key = "syntax\u0000" + config.get("analyzer") + "\u0000" + config.get("type") + "\u0000"
+                + config.get("to_lower_case") + "\u0000" + query;
+        long started = System.nanoTime();
+        Query parsed = QUERIES.computeIfAbsent(key, k -> {
+            QueryParser parser = new QueryParser(null, Analyzers.forIndex(config));
+            parser.setLowercaseExpandedTerms(!"false".equals(config.get("to_lower_case")));
             try {
-                tokenStream.reset();
-                while (tokenStream.incrementToken()) {
-                    offsetValue.append("+");
-                    offsetValue.append(offsetAttribute.toString());
-                    offsetValue.append(" ");
-                }
-                tokenStream.end();
-                tokenStream.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            value = offsetValue.toString();
-        }
-        StringBuilder query = new StringBuilder();
-        for(String propKey: propKeys){
-            query.append(propKey + ":(" + value + ") ");
-        }
-        Index<Node> fulltextIndex = mgr.forNodes(label);
-        IndexHits<Node> result = fulltextIndex.query(new QueryContext(query).defaultOperator(QueryParser.Operator.OR));
-        if(flag){
-            String queryString = value.replace("\"", "");
-            Stream<NodeAndScore> aResult = result
-                    .stream()
-                    .map(res -> new NodeAndScore(res, userDefinedScore(res, queryString)))
-                    .filter(res -> res.getScore() > score);
-            return  aResult;
-        }else{
-            Stream<NodeAndScore> aResult = result
-                    .stream()
-                    .map(res -> new NodeAndScore(res, (double)result.currentScore()))
-                    .filter(res -> res.getScore() > score);
-            return  aResult;
+                return parser.parse(query);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Invalid query: `" + query + "`", e);
+            }
+        });
+        QueryMetrics.current().analyzed(System.nanoTime() - started);
+        return parsed;
+    }
+
+    private static QueryContext propertyQuery(Map<String, String> config, List<String> propKeys, String value, int top){
+        boolean flag = value.startsWith("\"") ? true:false;
+        return topByScore(parseQuery(config, propKeys, value, flag), top);
+    }
+
+    private static QueryContext topByScore(Query query, int top){
+        QueryContext queryContext = new QueryContext(query);
+        if(top > 0){
+            queryContext = queryContext.sortByScore().top(top);
         }
+        return queryContext;
+    }
+
+    /**
+     * Build the query for the value over the given properties, once per distinct query.
+     * Unquoted values must match every term (in any one property),
+     * quoted values are searched as a phrase.
+     */
+    private static Query parseQuery(Map<String, String> config, List<String> propKeys, String value, boolean phrase){
+        String key = config.get("analyzer") + "\u0000" + config.get("type") + "\u0000"
+                + config.get(MultiFieldQueryBuilder.DISMAX_TIE_BREAKER) + "\u0000" + FieldMappings.of(config) + "\u0000"
+                + propKeys + "\u0000" + value;
+        long started = System.nanoTime();
+        Query query = QUERIES.computeIfAbsent(key, k -> {
+            MultiFieldQueryBuilder builder = MultiFieldQueryBuilder.forIndex(config);
+            return phrase ? builder.phrase(propKeys, value.replace("\"", "")) : builder.allTerms(propKeys, value);
+        });
+        QueryMetrics.current().analyzed(System.nanoTime() - started);
+        return query;
     }
 
 
 
-    @Procedure(value = "chineseFulltextIndex.addNodesIndexByLabels", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.ADD_NODES_INDEX_BY_LABELS, mode = Mode.WRITE)
     public void addNodesIndexByLabels(@Name("labels")List<String> labels){
-        for(String label:labels){
-            addNodesIndexByLabel(label);
-        }
+        call(ProcedureNames.ADD_NODES_INDEX_BY_LABELS, null).run(() -> {
+            for(String label:labels){
+                addNodesIndexByLabel(label);
+            }
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.addNodesIndex", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.ADD_NODES_INDEX, mode = Mode.WRITE)
     public void addNodesIndex(){
-        List<String> labels = new ArrayList<>();
-        ResourceIterable getLabels = db.getAllLabels();
-        for(Object label:getLabels){
-            labels.add(label.toString());
-        }
-        addNodesIndexByLabels(labels);
+        call(ProcedureNames.ADD_NODES_INDEX, null).run(() -> {
+            List<String> labels = new ArrayList<>();
+            ResourceIterable getLabels = db.getAllLabels();
+            for(Object label:getLabels){
+                labels.add(label.toString());
+            }
+            addNodesIndexByLabels(labels);
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.addNodesIndexByProperties", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.ADD_NODES_INDEX_BY_PROPERTIES, mode = Mode.WRITE)
     public void addNodesIndexByProperties(@Name("properties")List<String> properties){
-        ResourceIterable getLabels = db.getAllLabels();
-        for(Object label:getLabels){
-            Iterable<String> propKeys = db.findNodes(Label.label(label.toString())).next().getPropertyKeys();
-            List<String> needPerpKeys = new ArrayList<>();
-            for(String propKey:propKeys){
-                if(properties.contains(propKey)){
-                    needPerpKeys.add(propKey);
+        call(ProcedureNames.ADD_NODES_INDEX_BY_PROPERTIES, null).run(() -> {
+            // Labels none of whose nodes have any of the properties don't get an index
+            String[] propKeys = properties.toArray(new String[0]);
+            ResourceIterable getLabels = db.getAllLabels();
+            for(Object label:getLabels){
+                indexLabel(label.toString(), label.toString(), propKeys, false);
+            }
+        });
+    }
+
+
+    @Procedure(value = ProcedureNames.ADD_NODES_INDEX_BY_LABEL, mode = Mode.WRITE)
+    public void addNodesIndexByLabel(@Name("label")String label){
+        call(ProcedureNames.ADD_NODES_INDEX_BY_LABEL, null).run(() -> {
+    //        IndexManager mgr = db.index();
+    //        if(mgr.existsForNodes(label)){
+    //            mgr.forNodes(label).delete();
+    //        }
+    //        Index<Node> index= mgr.forNodes(label, FULL_INDEX_CONFIG);
+    //        db.findNodes(Label.label(label)).stream().peek(
+    //                node -> addNodeIndex(node, index)
+    //        );
+            indexLabel(label, label, null, true);
+        });
+    }
+
+    @Procedure(value = ProcedureNames.SUBMIT_INDEX_JOB, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.submitIndexJob(labels, properties, {batchSize: 10000, nodesPerSecond: 0}) yield jobId, state, ..., 在后台为标签（为空时所有标签）建立索引并立即返回任务 id，以相同属性中断过的索引从检查点继续；nodesPerSecond 限制每秒索引的节点数，0 为不限")
+    public Stream<IndexJobStatus> submitIndexJob(@Name(value = "labels", defaultValue = "[]") List<String> labels,
+                                                 @Name(value = "properties", defaultValue = "[]") List<String> propKeys,
+                                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.SUBMIT_INDEX_JOB, null).track(() -> {
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            long nodesPerSecond = ((Number) config.getOrDefault("nodesPerSecond", 0)).longValue();
+            List<String> targets = new ArrayList<>();
+            if(labels == null || labels.isEmpty()){
+                for(Label label: db.getAllLabels()){
+                    targets.add(label.name());
                 }
+            }else{
+                targets.addAll(labels);
             }
-            if(!needPerpKeys.isEmpty()){
-                addIndex(label.toString(), label.toString(), needPerpKeys);
+            String[] keys = propKeys == null || propKeys.isEmpty() ? null : propKeys.toArray(new String[0]);
+            IndexJobs.Job job = IndexRegistry.of(db).jobs(database).submit(targets, keys, STANDARD_ANALYZER, batchSize, nodesPerSecond);
+            return Stream.of(new IndexJobStatus(job));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.INDEX_JOB_STATUS, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.indexJobStatus(jobId) yield jobId, state, label, processed, total, nodesPerSecond, etaSeconds, ..., 后台建索引任务的进度，jobId 为 -1 时返回所有任务")
+    public Stream<IndexJobStatus> indexJobStatus(@Name(value = "jobId", defaultValue = "-1") long jobId){
+        // Not timed, it is polled
+        IndexJobs jobs = IndexRegistry.of(db).jobs(database);
+        List<IndexJobs.Job> selected = jobId < 0 ? jobs.all() : Collections.singletonList(jobs.get(jobId));
+        return selected.stream().map(IndexJobStatus::new);
+    }
+
+    @Procedure(value = ProcedureNames.CANCEL_INDEX_JOB, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.cancelIndexJob(jobId), 取消后台建索引任务，已提交的批次保留，可用 resumeIndexJob 从检查点继续")
+    public Stream<IndexJobStatus> cancelIndexJob(@Name("jobId") long jobId){
+        return call(ProcedureNames.CANCEL_INDEX_JOB, null).track(() -> {
+            IndexJobs.Job job = IndexRegistry.of(db).jobs(database).get(jobId);
+            job.cancel();
+            return Stream.of(new IndexJobStatus(job));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.RESUME_INDEX_JOB, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.resumeIndexJob(jobId), 继续已取消或失败的后台建索引任务，跳过已完成的标签，从检查点之后的节点开始")
+    public Stream<IndexJobStatus> resumeIndexJob(@Name("jobId") long jobId){
+        return call(ProcedureNames.RESUME_INDEX_JOB, null).track(() -> {
+            return Stream.of(new IndexJobStatus(IndexRegistry.of(db).jobs(database).resume(jobId)));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.THROTTLE_INDEX_JOB, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.throttleIndexJob(jobId, nodesPerSecond), 修改后台建索引任务每秒最多索引的节点数，立即生效，0 为不限")
+    public Stream<IndexJobStatus> throttleIndexJob(@Name("jobId") long jobId,
+                                                   @Name("nodesPerSecond") long nodesPerSecond){
+        return call(ProcedureNames.THROTTLE_INDEX_JOB, null).track(() -> {
+            IndexJobs.Job job = IndexRegistry.of(db).jobs(database).get(jobId);
+            job.throttle(nodesPerSecond);
+            return Stream.of(new IndexJobStatus(job));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.BULK_INDEX_BY_LABEL, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.bulkIndexByLabel(label, properties, {batchSize: 10000, mode: 'smart'}), 分批提交为标签建立索引，properties 为空时索引所有属性，给出 mode 或 dictionary 时用 IKAnalyzer 建立新索引")
+    public Stream<BulkIndexProgress> bulkIndexByLabel(@Name("label") String label,
+                                                      @Name(value = "properties", defaultValue = "[]") List<String> propKeys,
+                                                      @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.BULK_INDEX_BY_LABEL, null).track(() -> {
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            String[] keys = propKeys == null || propKeys.isEmpty() ? null : propKeys.toArray(new String[0]);
+            String index = indexName(label);
+            Map<String, String> indexConfig = config.containsKey("mode") || config.containsKey("dictionary")
+                    ? chineseConfig(config) : STANDARD_ANALYZER;
+            try(BatchIndexer indexer = new BatchIndexer(database, index, indexConfig, keys, batchSize)
+                    .withTuning(IndexTuning.fromOptions(config))){
+                indexer.indexLabel(label);
+                PropertyCatalog.record(db, index, indexer.indexedKeys());
+                return Stream.of(new BulkIndexProgress(index, label, indexer));
             }
-        }
+        });
     }
 
+    @Procedure(value = ProcedureNames.ADD_GLOBAL_INDEX, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.addGlobalIndex(labels, {batchSize: 10000}), 把多个标签（为空时所有标签）的节点建在同一个全局索引中，按标签查询时只需一次带标签过滤的查询")
+    public Stream<BulkIndexProgress> addGlobalIndex(@Name(value = "labels", defaultValue = "[]") List<String> labels,
+                                                    @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.ADD_GLOBAL_INDEX, null).track(() -> {
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            // Recorded as they are, so that a label showing up later is not routed to the global index
+            Set<String> covered = new LinkedHashSet<>();
+            if(labels == null || labels.isEmpty()){
+                try(ResourceIterator<Label> inUse = db.getAllLabelsInUse().iterator()){
+                    inUse.forEachRemaining(label -> covered.add(label.name()));
+                }
+            }else{
+                covered.addAll(labels);
+            }
+            try(BatchIndexer indexer = new BatchIndexer(database, GlobalIndex.NAME, STANDARD_ANALYZER, null, batchSize)
+                    .withLabels()
+                    .withTuning(IndexTuning.fromOptions(config))){
+                // Nodes of labels no longer covered go in the rebuild's own transactions
+                GlobalIndex.removeOtherLabels(db, covered, indexer);
+                List<String> earlier = new ArrayList<>();
+                for(String label: covered){
+                    try(ResourceIterator<Node> nodes = db.findNodes(Label.label(label))){
+                        while(nodes.hasNext()){
+                            Node node = nodes.next();
+                            // A node with several of the labels is indexed once, with the first of them
+                            if(earlier.stream().noneMatch(other -> node.hasLabel(Label.label(other)))){
+                                indexer.add(node.getId());
+                            }
+                        }
+                    }
+                    earlier.add(label);
+                }
+                indexer.flush();
+
+                IndexManager mgr = db.index();
+                Index<Node> index = openIndex(mgr, GlobalIndex.NAME, STANDARD_ANALYZER);
+                mgr.setConfiguration(index, GlobalIndex.COVERED_LABELS, String.join(",", covered));
+                IndexRegistry.of(db).invalidate(GlobalIndex.NAME);
+                PropertyCatalog.record(db, GlobalIndex.NAME, indexer.indexedKeys());
+                return Stream.of(new BulkIndexProgress(GlobalIndex.NAME, String.join(",", covered), indexer));
+            }
+        });
+    }
 
-    @Procedure(value = "chineseFulltextIndex.addNodesIndexByLabel", mode = Mode.WRITE)
-    public void addNodesIndexByLabel(@Name("label")String label){
-//        IndexManager mgr = db.index();
-//        if(mgr.existsForNodes(label)){
-//            mgr.forNodes(label).delete();
-//        }
-//        Index<Node> index= mgr.forNodes(label, FULL_INDEX_CONFIG);
-//        db.findNodes(Label.label(label)).stream().peek(
-//                node -> addNodeIndex(node, index)
-//        );
-        Label labelName = Label.label(label);
-        ResourceIterator<Node> nodes = db.findNodes(labelName);
-
-        while(nodes.hasNext()){
-            Node node = nodes.next();
-            Set<Map.Entry<String,Object>> properties =
-                    node.getAllProperties().entrySet();
+    @Procedure(value = ProcedureNames.PARALLEL_INDEX_BY_LABELS, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.parallelIndexByLabels(labels, {threads: 8, batchSize: 10000}), 多线程按标签和节点 id 区间并行建立索引，labels 为空时索引所有标签，返回每个线程的吞吐量")
+    public Stream<WorkerProgress> parallelIndexByLabels(@Name(value = "labels", defaultValue = "[]") List<String> labels,
+                                                        @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.PARALLEL_INDEX_BY_LABELS, null).track(() -> {
+            int threads = ((Number) config.getOrDefault("threads", ParallelIndexer.DEFAULT_THREADS)).intValue();
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            List<String> targets = new ArrayList<>();
+            if(labels == null || labels.isEmpty()){
+                for(Label label: db.getAllLabels()){
+                    targets.add(label.name());
+                }
+            }else{
+                targets.addAll(labels);
+            }
+            List<String> indexNames = new ArrayList<>();
+            for(String label: targets){
+                indexNames.add(indexName(label));
+            }
+            try(ParallelIndexer indexer = new ParallelIndexer(database, STANDARD_ANALYZER, threads, batchSize, this::addNodeIndex)
+                    .withTuning(IndexTuning.fromOptions(config))){
+                List<ParallelIndexer.Worker> workers = indexer.indexLabels(targets, indexNames);
+                for(Map.Entry<String, Set<String>> indexed: indexer.indexedKeys().entrySet()){
+                    PropertyCatalog.record(db, indexed.getKey(), indexed.getValue());
+                }
+                return workers.stream().map(WorkerProgress::new);
+            }
+        });
+    }
 
-            Index<Node> index = db.index().forNodes( label, STANDARD_ANALYZER);
+    @Procedure(value = ProcedureNames.TUNE, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.tune(indexName, {ramBufferMB: 64, mergePolicy: 'tiered', segmentsPerTier: 10, maxMergedSegmentMB: 5120, mergeFactor: 10}), 设置索引的 Lucene 写入缓冲和段合并策略")
+    public Stream<IndexInfo> tune(@Name("indexName") String indexName,
+                                  @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.TUNE, null).track(() -> {
+            if(IndexRegistry.of(db).configuration(db, indexName) == null){
+                log.debug( "Skipping tuning since index does not exist: `%s`", indexName );
+                return Stream.empty();
+            }
+            IndexTuning.configure(db, indexName, IndexTuning.fromOptions(config));
+            return Stream.of(new IndexInfo(NODE, indexName, db.index().getConfiguration(db.index().forNodes(indexName))));
+        });
+    }
 
-            index.remove( node );
+    @Procedure(value = ProcedureNames.MAP_FIELDS, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.mapFields(indexName, {title: 'text', code: 'keyword', price: 'numeric', stock: 'numeric:long', raw: 'skip', `*`: 'text'}), 设置各属性的索引方式，之后（重新）建立的索引和查询都按此处理")
+    public Stream<IndexInfo> mapFields(@Name("indexName") String indexName,
+                                       @Name("mappings") Map<String, Object> mappings){
+        return call(ProcedureNames.MAP_FIELDS, null).track(() -> {
+            IndexManager mgr = db.index();
+            Index<Node> index = openIndex(mgr, indexName, STANDARD_ANALYZER);
+            for(Map.Entry<String, Object> mapping: mappings.entrySet()){
+                FieldMappings.validate(String.valueOf(mapping.getValue()));
+            }
+            for(Map.Entry<String, Object> mapping: mappings.entrySet()){
+                mgr.setConfiguration(index, FieldMappings.PREFIX + mapping.getKey(), String.valueOf(mapping.getValue()));
+            }
+            IndexRegistry.of(db).invalidate(indexName);
+            return Stream.of(new IndexInfo(NODE, indexName, mgr.getConfiguration(index)));
+        });
+    }
 
-            for ( Map.Entry<String,Object> property : properties )
-            {
-                index.add( node, property.getKey(), property.getValue());
+    @Procedure(value = ProcedureNames.OPTIMIZE, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.optimize(indexName, maxSegments), 把索引合并到最多 maxSegments 个段，适合批量建索引之后执行")
+    public Stream<OptimizeResult> optimize(@Name("indexName") String indexName,
+                                           @Name(value = "maxSegments", defaultValue = "1") long maxSegments){
+        return call(ProcedureNames.OPTIMIZE, null).track(() -> {
+            if(IndexRegistry.of(db).configuration(db, indexName) == null){
+                log.debug( "Skipping optimize since index does not exist: `%s`", indexName );
+                return Stream.empty();
+            }
+            long started = System.currentTimeMillis();
+            int before = LuceneIndexes.withIndex(db, indexName, (writer, searcher) -> searcher.getIndexReader().leaves().size());
+            LuceneIndexes.withIndex(db, indexName, (writer, searcher) -> {
+                writer.forceMerge((int) Math.max(1, Math.min(maxSegments, Integer.MAX_VALUE)));
+                writer.commit();
+                return null;
+            });
+            LuceneIndexes.refresh(db, indexName);
+            int after = LuceneIndexes.withIndex(db, indexName, (writer, searcher) -> searcher.getIndexReader().leaves().size());
+            return Stream.of(new OptimizeResult(indexName, before, after, System.currentTimeMillis() - started));
+        });
+    }
+
+    // Writes files on the server, so not for read-only users
+    @Procedure(value = ProcedureNames.EXPORT_INDEX, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.exportIndex(indexName, path, overwrite), 把已建好的索引（段文件、存储 id、索引配置和所含的最后一个事务 id）连同校验和写入快照目录（系统属性 chinese.fulltext.snapshot_dir）下的 path，文件已存在时 overwrite 为 true 才覆盖，建索引和查询不受影响")
+    public Stream<SnapshotInfo> exportIndex(@Name("indexName") String indexName,
+                                            @Name("path") String path,
+                                            @Name(value = "overwrite", defaultValue = "false") boolean overwrite){
+        return call(ProcedureNames.EXPORT_INDEX, null).track(() -> {
+            long started = System.currentTimeMillis();
+            IndexSnapshot snapshot = IndexSnapshot.export(db, indexName, IndexSnapshot.file(path), overwrite);
+            return Stream.of(new SnapshotInfo(snapshot, path, 0, System.currentTimeMillis() - started));
+        });
+    }
+
+    @Procedure(value = ProcedureNames.IMPORT_INDEX, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.importIndex(path, {batchSize: 10000}), 从快照目录下 exportIndex 的快照恢复同一存储的索引，校验通过后替换索引内容，再只重建快照之后（按事务日志）有变化的节点")
+    public Stream<SnapshotInfo> importIndex(@Name("path") String path,
+                                            @Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.IMPORT_INDEX, null).track(() -> {
+            long started = System.currentTimeMillis();
+            File source = IndexSnapshot.file(path);
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            // Fails before the index is touched if the snapshot is of another store, or the log doesn't match it
+            IndexSnapshot header = IndexSnapshot.header(source);
+            IndexSnapshot.checkImportable(db, header);
+            Set<Long> changed = new TreeSet<>();
+            long read = IndexSnapshot.changedNodes(db, header.transactionId, changed);
+            IndexSnapshot snapshot = IndexSnapshot.load(db, source);
+            IndexSnapshot.changedNodes(db, read, changed);
+            long replayed = replay(snapshot, changed, batchSize);
+            log.info("Imported index `%s` from `%s` at transaction %d, %d nodes changed since",
+                    snapshot.index, path, snapshot.transactionId, replayed);
+            return Stream.of(new SnapshotInfo(snapshot, path, replayed, System.currentTimeMillis() - started));
+        });
+    }
+
+    /**
+     * Bring an imported index up to date: reindex the changed nodes it covers, and drop the others.
+     *
+     * @return the number of nodes reindexed or dropped
+     */
+    private long replay(IndexSnapshot snapshot, Set<Long> changed, int batchSize){
+        if(changed.isEmpty()){
+            return 0;
+        }
+        Map<String, String> config = snapshot.config;
+        boolean global = GlobalIndex.NAME.equals(snapshot.index);
+        // The labels of the nodes in the index
+        Set<String> labels;
+        if(global){
+            String covered = config.get(GlobalIndex.COVERED_LABELS);
+            labels = covered == null || covered.isEmpty() ? Collections.emptySet() : new HashSet<>(Arrays.asList(covered.split(",")));
+        }else{
+            labels = Collections.singleton(config.getOrDefault(IndexMaintenance.LABEL, snapshot.index));
+        }
+        String keys = config.containsKey(IndexMaintenance.PROPERTIES) ? config.get(IndexMaintenance.PROPERTIES) : config.get(PropertyCatalog.PROPERTY_KEYS);
+        String[] propKeys = keys == null || keys.isEmpty() ? null : keys.split(",");
+
+        List<Long> dropped = new ArrayList<>();
+        try(BatchIndexer indexer = new BatchIndexer(database, snapshot.index, null, propKeys, batchSize)){
+            if(global){
+                indexer.withLabels();
+            }
+            for(long id: changed){
+                Node node;
+                try{
+                    node = db.getNodeById(id);
+                }catch(NotFoundException e){
+                    dropped.add(id);
+                    continue;
+                }
+                boolean covered = false;
+                for(Label label: node.getLabels()){
+                    covered |= labels.contains(label.name());
+                }
+                if(covered){
+                    indexer.add(id);
+                }else{
+                    dropped.add(id);
+                }
+            }
+            indexer.flush();
+            PropertyCatalog.record(db, snapshot.index, indexer.indexedKeys());
+            IndexSnapshot.removeNodes(db, snapshot.index, dropped);
+            return indexer.nodes() + dropped.size();
+        }
+    }
+
+    @Procedure(value = ProcedureNames.RELOAD_DICTIONARY, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.reloadDictionary({batchSize: 10000}), 重新加载 IK 索引配置中的自定义词典和停用词文件，只重建原文包含新增或删除词语的节点的索引")
+    public Stream<DictionaryReload> reloadDictionary(@Name(value = "config", defaultValue = "{}") Map<String, Object> config){
+        return call(ProcedureNames.RELOAD_DICTIONARY, null).track(() -> {
+            int batchSize = ((Number) config.getOrDefault("batchSize", BatchIndexer.DEFAULT_BATCH_SIZE)).intValue();
+            IndexManager mgr = db.index();
+            // IK's dictionary is shared, a word from any file changes how every IK index segments
+            List<String> ikIndexes = new ArrayList<>();
+            Set<String> files = new HashSet<>();
+            Set<String> changed = new HashSet<>();
+            for(String name: mgr.nodeIndexNames()){
+                Map<String, String> indexConfig = mgr.getConfiguration(mgr.forNodes(name));
+                String analyzer = indexConfig.get("analyzer");
+                if(!Analyzers.CHINESE.equals(analyzer) && !Analyzers.CHINESE_SMART.equals(analyzer)){
+                    continue;
+                }
+                ikIndexes.add(name);
+                for(String key: new String[]{IKDictionary.DICTIONARY, IKDictionary.STOPWORDS}){
+                    String path = indexConfig.get(key);
+                    if(path != null && files.add(key + "\u0000" + path)){
+                        changed.addAll(IKDictionary.reload(key, path));
+                    }
+                }
+            }
+            // Queries built with the old segmentation
+            QUERIES.clear();
+
+            List<DictionaryReload> reloads = new ArrayList<>();
+            for(String name: ikIndexes){
+                long started = System.currentTimeMillis();
+                long nodes = 0;
+                if(!changed.isEmpty()){
+                    nodes = reindexContaining(name, changed, batchSize);
+                }
+                IndexRegistry.of(db).invalidate(name);
+                reloads.add(new DictionaryReload(name, changed.size(), nodes, System.currentTimeMillis() - started));
+            }
+            return reloads.stream();
+        });
+    }
+
+    /**
+     * Reindex the nodes whose raw text in the index contains any of the words, found
+     * with wildcards on the exact copies of their values rather than by scanning nodes.
+     *
+     * @return the number of nodes reindexed
+     */
+    private long reindexContaining(String indexName, Set<String> words, int batchSize){
+        FieldMappings mappings = FieldMappings.of(IndexRegistry.of(db).configuration(db, indexName));
+        List<String> indexedKeys = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for(String key: propertyKeys(indexName)){
+            if(!FieldMappings.SKIP.equals(mappings.typeOf(key))){
+                indexedKeys.add(key);
+                // Numbers have no text to contain a word
+                if(!mappings.isNumeric(key)){
+                    keys.add(key);
+                }
+            }
+        }
+        if(keys.isEmpty()){
+            return 0;
+        }
+        Set<Long> ids = new TreeSet<>();
+        List<String> pending = new ArrayList<>(words);
+        int chunk = Math.max(1, BooleanQuery.getMaxClauseCount() / keys.size());
+        for(int i = 0; i < pending.size(); i += chunk){
+            Query query = IKDictionary.containing(keys, pending.subList(i, Math.min(i + chunk, pending.size())));
+            NodeIdHits hits = IndexRegistry.of(db).queryIds(db, indexName, new QueryContext(query));
+            if(hits == null){
+                return 0;
+            }
+            try(Stream<NodeIdAndScore> found = hits.stream(indexName)){
+                found.forEach(hit -> ids.add(hit.nodeId));
+            }
+        }
+        // A node is rewritten as a whole, numbers included
+        try(BatchIndexer indexer = new BatchIndexer(database, indexName, null, indexedKeys.toArray(new String[0]), batchSize)){
+            if(GlobalIndex.NAME.equals(indexName)){
+                indexer.withLabels();
+            }
+            for(long id: ids){
+                try{
+                    db.getNodeById(id);
+                }catch(NotFoundException e){
+                    // Deleted since it was indexed
+                    continue;
+                }
+                indexer.add(id);
+            }
+            indexer.flush();
+            return indexer.nodes();
+        }
+    }
+
+    @Procedure(value = ProcedureNames.STATS, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.stats(reset) yield scope, name, calls, p50Millis, p95Millis, p99Millis, ..., 各过程和各索引的调用次数、延迟分位数、分析/Lucene/加载节点耗时和命中数，以及各索引的建索引速度；reset 为 true 时读取后清零")
+    public Stream<ProcedureStats> stats(@Name(value = "reset", defaultValue = "false") boolean reset){
+        // Not timed itself, so reading the statistics does not change them
+        QueryMetrics metrics = IndexRegistry.of(db).metrics();
+        List<ProcedureStats> stats = new ArrayList<>();
+        metrics.procedures().forEach((name, procedure) -> stats.add(new ProcedureStats("procedure", name, procedure, null)));
+        metrics.indexes().forEach((name, index) -> stats.add(new ProcedureStats("index", name, index, metrics.indexing().get(name))));
+        metrics.indexing().forEach((name, indexing) -> {
+            if(!metrics.indexes().containsKey(name)){
+                stats.add(new ProcedureStats("index", name, null, indexing));
             }
+        });
+        if(reset){
+            metrics.reset();
+        }
+        return stats.stream();
+    }
 
+    @Procedure(value = ProcedureNames.SLOW_QUERY_LOG, mode = Mode.READ)
+    @Description("call chineseFulltextIndex.slowQueryLog(thresholdMs), 超过 thresholdMs 毫秒的查询连同查询语句和 Lucene 查询写入日志（WARN），负数关闭；仅管理员可调用")
+    public Stream<SlowQueryLog> slowQueryLog(@Name("thresholdMs") long thresholdMs){
+        // The threshold holds for every caller of the database, not just this one
+        if(!transaction.securityContext().isAdmin()){
+            throw new AuthorizationViolationException("Only an admin can change the slow query log threshold");
         }
+        QueryMetrics metrics = IndexRegistry.of(db).metrics();
+        metrics.setSlowQueryThresholdMillis(thresholdMs);
+        return Stream.of(new SlowQueryLog(metrics.getSlowQueryThresholdMillis(), metrics.getSlowQueries()));
     }
 
-    public void addNodeIndex(Node node, Index<Node> index){
-        Set<Map.Entry<String,Object>> properties =
-                node.getProperties().entrySet();
+    @Procedure(value = ProcedureNames.AUTO_UPDATE, mode = Mode.WRITE)
+    @Description("call chineseFulltextIndex.autoUpdate(indexName, label, properties, enabled), 开启或关闭索引的增量维护：事务提交前只更新被修改的节点，properties 为空时维护所有属性")
+    public Stream<IndexInfo> autoUpdate(@Name("indexName") String indexName,
+                                        @Name("label") String label,
+                                        @Name(value = "properties", defaultValue = "[]") List<String> propKeys,
+                                        @Name(value = "enabled", defaultValue = "true") boolean enabled){
+        return call(ProcedureNames.AUTO_UPDATE, null).track(() -> {
+            IndexManager mgr = db.index();
+            // Whatever analyzer the index was built with, never create one here
+            if(!mgr.existsForNodes(indexName)){
+                throw new IllegalArgumentException("No such index: `" + indexName + "`");
+            }
+            Index<Node> index = mgr.forNodes(indexName);
+            if(enabled){
+                mgr.setConfiguration(index, IndexMaintenance.LABEL, label);
+                mgr.setConfiguration(index, IndexMaintenance.PROPERTIES, String.join(",", propKeys));
+            }else{
+                mgr.removeConfiguration(index, IndexMaintenance.LABEL);
+                mgr.removeConfiguration(index, IndexMaintenance.PROPERTIES);
+            }
+            IndexMaintenance.configurationChanged();
+            IndexRegistry.of(db).invalidate(indexName);
+            return Stream.of(new IndexInfo(NODE, indexName, mgr.getConfiguration(index)));
+        });
+    }
 
-        for ( Map.Entry<String,Object> property : properties )
+    /**
+     * Index every property of the node. This used to call {@code getProperties()} without
+     * keys, which returns no properties at all, so it reads them all like indexLabel does.
+     * Runs on the index workers, hence {@link #database}.
+     *
+     * @return the keys of the indexed properties
+     */
+    public Set<String> addNodeIndex(Node node, Index<Node> index){
+        Map<String,Object> properties = node.getAllProperties();
+        FieldMappings mappings = FieldMappings.of(IndexRegistry.of(database).configuration(database, index.getName()));
+        Set<String> indexedKeys = new HashSet<>();
+
+        for ( Map.Entry<String,Object> property : properties.entrySet() )
         {
-            index.add( node, property.getKey(), property.getValue() );
+            if ( mappings.add( index, node, property.getKey(), property.getValue() ) )
+            {
+                indexedKeys.add( property.getKey() );
+            }
         }
+        return indexedKeys;
     }
 
-    @Procedure(value = "chineseFulltextIndex.removeIndex", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.REMOVE_INDEX, mode = Mode.WRITE)
     public Stream<IndexInfo> removeIndex(){
-        IndexManager mgr = db.index();
-        String[] indexNames = mgr.nodeIndexNames();
-        List<IndexInfo> indexInfos = new ArrayList<>();
-        for(String indexname:indexNames){
-            Index<Node> index = mgr.forNodes(indexname);
-            indexInfos.add(new IndexInfo(NODE, indexname, mgr.getConfiguration(index)));
-            index.delete();
-        }
-        return indexInfos.stream();
+        return call(ProcedureNames.REMOVE_INDEX, null).track(() -> {
+            IndexManager mgr = db.index();
+            String[] indexNames = mgr.nodeIndexNames();
+            List<IndexInfo> indexInfos = new ArrayList<>();
+            for(String indexname:indexNames){
+                Index<Node> index = mgr.forNodes(indexname);
+                indexInfos.add(new IndexInfo(NODE, indexname, mgr.getConfiguration(index)));
+                index.delete();
+            }
+            IndexRegistry.of(db).invalidateAll();
+            return indexInfos.stream();
+        });
     }
 
-    @Procedure(value = "chineseFulltextIndex.removeIndexByLabel", mode = Mode.WRITE)
+    @Procedure(value = ProcedureNames.REMOVE_INDEX_BY_LABEL, mode = Mode.WRITE)
     public Stream<IndexInfo> removeIndexByLabel(@Name("name") String name) {
-        IndexManager mgr = db.index();
-        List<IndexInfo> indexInfos = new ArrayList<>();
-        if (mgr.existsForNodes(name)) {
-            Index<Node> index = mgr.forNodes(name);
-            indexInfos.add(new IndexInfo(NODE, name, mgr.getConfiguration(index)));
-            index.delete();
-        }
-        return indexInfos.stream();
+        return call(ProcedureNames.REMOVE_INDEX_BY_LABEL, null).track(() -> {
+            IndexManager mgr = db.index();
+            List<IndexInfo> indexInfos = new ArrayList<>();
+            if (mgr.existsForNodes(name)) {
+                Index<Node> index = mgr.forNodes(name);
+                indexInfos.add(new IndexInfo(NODE, name, mgr.getConfiguration(index)));
+                index.delete();
+                IndexRegistry.of(db).invalidate(name);
+            }
+            return indexInfos.stream();
+        });
     }
 
 //    public static String filterOffUtf8Mb4(String text)
@@ -460,21 +1322,6 @@ public class FullTextIndex
 //        return new String(buffer.array(), "utf-8");
 //    }
 
-    public static double userDefinedScore(Node node, String queryString){
-        Map<String, Object> allproperties = node.getAllProperties();
-        int max = 0;
-        for(Map.Entry<String, Object> property:allproperties.entrySet()){
-            String value = property.getValue().toString();
-            if(value.contains(queryString)){
-                int length = value.length();
-                if(length > max){
-                    max = length;
-                }
-            }
-        }
-        return 1.0 / max;
-    }
-
     public static class IndexInfo {
         public final String type;
         public final String name;
@@ -507,6 +1354,215 @@ public class FullTextIndex
         }
     }
 
+    /**
+     * A hit as primitives only, for callers that join on the node id.
+     */
+    public static class NodeIdAndScore{
+        public final long nodeId;
+        public final double score;
+        public final String index;
+
+        public NodeIdAndScore(long nodeId, double score, String index){
+            this.nodeId = nodeId;
+            this.score = score;
+            this.index = index;
+        }
+    }
+
+    public static class PageHit{
+        public final Node node;
+        public final double score;
+        // Pass the cursor of the last hit of a page to get the next page
+        public final String cursor;
+
+        public PageHit(Node node, float score){
+            this.node = node;
+            this.score = score;
+            this.cursor = new PageCursor(score, node.getId()).encode();
+        }
+    }
+
+    public static class OptimizeResult {
+        public final String index;
+        public final long segmentsBefore;
+        public final long segmentsAfter;
+        public final long elapsedMillis;
+
+        public OptimizeResult(String index, long segmentsBefore, long segmentsAfter, long elapsedMillis) {
+            this.index = index;
+            this.segmentsBefore = segmentsBefore;
+            this.segmentsAfter = segmentsAfter;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    public static class Suggestion {
+        public final String term;
+        // Number of documents holding the term
+        public final long weight;
+
+        public Suggestion(String term, long weight) {
+            this.term = term;
+            this.weight = weight;
+        }
+    }
+
+    public static class SnapshotInfo {
+        public final String index;
+        public final String path;
+        public final long transactionId;
+        public final long files;
+        public final long bytes;
+        // Nodes changed after the snapshot and brought up to date on import
+        public final long replayedNodes;
+        public final long elapsedMillis;
+
+        public SnapshotInfo(IndexSnapshot snapshot, String path, long replayedNodes, long elapsedMillis) {
+            this.index = snapshot.index;
+            this.path = path;
+            this.transactionId = snapshot.transactionId;
+            this.files = snapshot.files;
+            this.bytes = snapshot.bytes;
+            this.replayedNodes = replayedNodes;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    public static class DictionaryReload {
+        public final String index;
+        public final long changedWords;
+        public final long nodes;
+        public final long elapsedMillis;
+
+        public DictionaryReload(String index, long changedWords, long nodes, long elapsedMillis) {
+            this.index = index;
+            this.changedWords = changedWords;
+            this.nodes = nodes;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    public static class ProcedureStats {
+        // procedure, or index
+        public final String scope;
+        public final String name;
+        public final long calls;
+        public final long errors;
+        public final double meanMillis;
+        public final double p50Millis;
+        public final double p95Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+        public final long scanned;
+        public final long returned;
+        public final double analyzeMillis;
+        public final double luceneMillis;
+        public final double materializeMillis;
+        public final long indexedNodes;
+        public final double nodesPerSecond;
+
+        public ProcedureStats(String scope, String name, QueryMetrics.Stats stats, QueryMetrics.Indexing indexing) {
+            this.scope = scope;
+            this.name = name;
+            this.calls = stats == null ? 0 : stats.calls();
+            this.errors = stats == null ? 0 : stats.errors();
+            this.meanMillis = stats == null ? 0 : stats.meanMillis();
+            this.p50Millis = stats == null ? 0 : stats.percentileMillis(0.50);
+            this.p95Millis = stats == null ? 0 : stats.percentileMillis(0.95);
+            this.p99Millis = stats == null ? 0 : stats.percentileMillis(0.99);
+            this.maxMillis = stats == null ? 0 : stats.maxMillis();
+            this.scanned = stats == null ? 0 : stats.scanned();
+            this.returned = stats == null ? 0 : stats.returned();
+            this.analyzeMillis = stats == null ? 0 : stats.analyzeMillis();
+            this.luceneMillis = stats == null ? 0 : stats.luceneMillis();
+            this.materializeMillis = stats == null ? 0 : stats.materializeMillis();
+            this.indexedNodes = indexing == null ? 0 : indexing.nodes();
+            this.nodesPerSecond = indexing == null ? 0 : indexing.nodesPerSecond();
+        }
+    }
+
+    public static class SlowQueryLog {
+        public final long thresholdMillis;
+        public final long slowQueries;
+
+        public SlowQueryLog(long thresholdMillis, long slowQueries) {
+            this.thresholdMillis = thresholdMillis;
+            this.slowQueries = slowQueries;
+        }
+    }
+
+    public static class IndexJobStatus {
+        public final long jobId;
+        // QUEUED, RUNNING, DONE, CANCELLED or FAILED
+        public final String state;
+        public final List<String> labels;
+        public final List<String> finishedLabels;
+        public final String label;
+        // Of the current run: nodes gone through out of total, and nodes indexed
+        public final long processed;
+        public final long total;
+        public final long indexed;
+        public final long checkpoint;
+        public final double nodesPerSecond;
+        public final long throttle;
+        public final long etaSeconds;
+        public final long elapsedMillis;
+        public final String error;
+
+        public IndexJobStatus(IndexJobs.Job job) {
+            this.jobId = job.id;
+            this.state = job.state().name();
+            this.labels = job.labels;
+            this.finishedLabels = job.finishedLabels();
+            this.label = job.label();
+            this.processed = job.processed();
+            this.total = job.total();
+            this.indexed = job.indexed();
+            this.checkpoint = job.checkpoint();
+            this.nodesPerSecond = job.nodesPerSecond();
+            this.throttle = job.throttleNodesPerSecond();
+            this.etaSeconds = job.etaSeconds();
+            this.elapsedMillis = job.elapsedMillis();
+            this.error = job.error();
+        }
+    }
+
+    public static class BulkIndexProgress {
+        public final String index;
+        public final String label;
+        public final long nodes;
+        public final long batches;
+        public final long elapsedMillis;
+        public final double nodesPerSecond;
+
+        public BulkIndexProgress(String index, String label, BatchIndexer indexer) {
+            this.index = index;
+            this.label = label;
+            this.nodes = indexer.nodes();
+            this.batches = indexer.batches();
+            this.elapsedMillis = indexer.elapsedMillis();
+            this.nodesPerSecond = indexer.nodesPerSecond();
+        }
+    }
+
+    public static class WorkerProgress {
+        public final String worker;
+        public final List<String> labels;
+        public final long tasks;
+        public final long nodes;
+        public final long busyMillis;
+        public final double nodesPerSecond;
+
+        public WorkerProgress(ParallelIndexer.Worker worker) {
+            this.worker = worker.name();
+            this.labels = worker.labels();
+            this.tasks = worker.tasks();
+            this.nodes = worker.nodes();
+            this.busyMillis = worker.busyMillis();
+            this.nodesPerSecond = worker.nodesPerSecond();
+        }
+    }
+
     public static class SearchHit
     {
         // This records contain a single field named 'nodeId'
@@ -532,4 +1588,12 @@ public class FullTextIndex
         return label;
     }
 
+    /**
+     * Start timing a procedure call, see {@link QueryMetrics}.
+     */
+    private QueryMetrics.Call call( String procedure, Object query )
+    {
+        return IndexRegistry.of( db ).metrics().start( procedure, query, log );
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package extension;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.index.Index;
+
+/**
+ * A single index over the nodes of many labels, instead of one index per label.
+ *
+ * Every document also carries the labels of its node in {@link #LABELS}, so a
+ * search over several labels, or the whole graph, is one Lucene query with a
+ * label filter rather than one query per index. The labels it was built for
+ * are kept in its configuration under {@link #COVERED_LABELS}; a build over all
+ * labels records the labels in use at the time, so a label that only shows up
+ * later is still searched in its own index.
+ */
+public class GlobalIndex
+{
+    public static final String NAME = "__global__";
+    // Document field holding the node's labels, the legacy index keeps an exact copy under `__labels___e`
+    public static final String LABELS = "__labels__";
+    // Index configuration key, the covered labels joined by commas
+    public static final String COVERED_LABELS = "global.labels";
+
+    private GlobalIndex()
+    {
+    }
+
+    /**
+     * @return the labels the global index covers, or {@code null} if there is no global index
+     */
+    public static Set<String> coveredLabels( GraphDatabaseService db )
+    {
+        Map<String,String> config = IndexRegistry.of( db ).configuration( db, NAME );
+        if ( config == null )
+        {
+            return null;
+        }
+        String labels = config.get( COVERED_LABELS );
+        return labels == null || labels.isEmpty() ? new HashSet<>() : new HashSet<>( Arrays.asList( labels.split( "," ) ) );
+    }
+
+    public static boolean covers( Set<String> coveredLabels, String label )
+    {
+        return coveredLabels != null && coveredLabels.contains( label );
+    }
+
+    /**
+     * Before a rebuild, have the indexer remove every node indexed under a label outside the given
+     * ones that has none of them now; those that do are written again by the rebuild.
+     */
+    public static void removeOtherLabels( GraphDatabaseService db, Set<String> labels, BatchIndexer indexer )
+    {
+        IndexRegistry registry = IndexRegistry.of( db );
+        if ( registry.configuration( db, NAME ) == null )
+        {
+            return;
+        }
+        Set<Long> stale = new TreeSet<>();
+        // Every label ever created, also those no node carries any more
+        try ( ResourceIterator<Label> all = db.getAllLabels().iterator() )
+        {
+            while ( all.hasNext() )
+            {
+                String label = all.next().name();
+                if ( labels.contains( label ) )
+                {
+                    continue;
+                }
+                NodeIdHits hits = registry.queryIds( db, NAME, new TermQuery( new Term( LABELS + "_e", label ) ) );
+                if ( hits == null )
+                {
+                    return;
+                }
+                try ( Stream<FullTextIndex.NodeIdAndScore> found = hits.stream( NAME ) )
+                {
+                    found.forEach( hit -> stale.add( hit.nodeId ) );
+                }
+            }
+        }
+        for ( long nodeId : stale )
+        {
+            Node node;
+            try
+            {
+                node = db.getNodeById( nodeId );
+            }
+            catch ( NotFoundException e )
+            {
+                // Deleted nodes leave the index with them
+                continue;
+            }
+            boolean covered = false;
+            for ( Label label : node.getLabels() )
+            {
+                covered |= labels.contains( label.name() );
+            }
+            if ( !covered )
+            {
+                indexer.remove( nodeId );
+            }
+        }
+    }
+
+    /**
+     * Add the labels of the node to its document, next to its properties.
+     */
+    public static void addLabels( Index<Node> index, Node node )
+    {
+        for ( Label label : node.getLabels() )
+        {
+            index.add( node, LABELS, label.name() );
+        }
+    }
+
+    /**
+     * @return the query restricted to nodes with any of the labels; the filter does not change the scores
+     */
+    public static Query filter( Query query, Collection<String> labels )
+    {
+        BooleanQuery.Builder anyLabel = new BooleanQuery.Builder();
+        for ( String label : labels )
+        {
+            anyLabel.add( new TermQuery( new Term( LABELS + "_e", label ) ), BooleanClause.Occur.SHOULD );
+        }
+        return new BooleanQuery.Builder()
+                .setDisableCoord( true )
+                .add( query, BooleanClause.Occur.MUST )
+                .add( anyLabel.build(), BooleanClause.Occur.FILTER )
+                .build();
+    }
+}
@@ -0,0 +1,227 @@
+package extension;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+
+/**
+ * Custom words and stop words for IKAnalyzer, from dictionary files named in the index configuration.
+ *
+ * IK keeps a single dictionary per JVM, shared by every IK analyzer at index and
+ * query time alike, so words added here segment the same way everywhere. The
+ * files are loaded the first time their index is used after a restart, see
+ * {@link IndexRegistry}, and can be reloaded at any time with {@link #reload}.
+ * They are plain UTF-8, one word per line, in the format of IK's own extension
+ * dictionaries. IK is reached by reflection like the analyzers themselves, so
+ * nothing breaks where it isn't installed until an index asks for it. IK has no
+ * API for stop words, they go straight into its stop word segment.
+ */
+public class IKDictionary
+{
+    // Index configuration keys, the paths of the dictionary files
+    public static final String PREFIX = "ik.";
+    public static final String DICTIONARY = PREFIX + "dictionary";
+    public static final String STOPWORDS = PREFIX + "stopwords";
+
+    // The words currently loaded from each file, by file and key
+    private static final Map<String,Set<String>> LOADED = new ConcurrentHashMap<>();
+
+    private IKDictionary()
+    {
+    }
+
+    /**
+     * Add the words of the dictionary files in the index configuration, once per file.
+     */
+    public static void load( Map<String,String> config )
+    {
+        for ( String key : new String[]{DICTIONARY, STOPWORDS} )
+        {
+            String path = config.get( key );
+            if ( path != null && !LOADED.containsKey( key + "\u0000" + path ) )
+            {
+                reload( key, path );
+            }
+        }
+    }
+
+    /**
+     * Read a dictionary file again and bring IK in line with it. A file that wasn't
+     * loaded before counts as entirely new.
+     *
+     * @param key {@link #DICTIONARY} or {@link #STOPWORDS}
+     * @return the words added to or removed from the file since it was last loaded
+     */
+    public static synchronized Set<String> reload( String key, String path )
+    {
+        Set<String> words = new HashSet<>( read( path ) );
+        Set<String> before = LOADED.getOrDefault( key + "\u0000" + path, Collections.emptySet() );
+        Set<String> added = new HashSet<>( words );
+        added.removeAll( before );
+        Set<String> removed = new HashSet<>( before );
+        removed.removeAll( words );
+        // IK's dictionary is shared by every file, a word another file still has stays in it
+        removed.removeIf( word -> loadedElsewhere( key, path, word ) );
+        if ( DICTIONARY.equals( key ) )
+        {
+            call( "addWords", added );
+            call( "disableWords", removed );
+        }
+        else
+        {
+            stopWords( "fillSegment", added );
+            stopWords( "disableSegment", removed );
+        }
+        LOADED.put( key + "\u0000" + path, words );
+        Set<String> changed = new HashSet<>( added );
+        changed.addAll( removed );
+        return changed;
+    }
+
+    private static boolean loadedElsewhere( String key, String path, String word )
+    {
+        String file = key + "\u0000" + path;
+        for ( Map.Entry<String,Set<String>> loaded : LOADED.entrySet() )
+        {
+            if ( loaded.getKey().startsWith( key + "\u0000" ) && !loaded.getKey().equals( file ) && loaded.getValue().contains( word ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a query for the nodes whose raw value of any of the properties contains any of the words,
+     *         on the exact copy the index keeps of every value under {@code <property>_e}
+     */
+    public static Query containing( Collection<String> properties, Collection<String> words )
+    {
+        BooleanQuery.Builder any = new BooleanQuery.Builder();
+        for ( String property : properties )
+        {
+            for ( String word : words )
+            {
+                any.add( new WildcardQuery( new Term( property + "_e", "*" + escape( word ) + "*" ) ), BooleanClause.Occur.SHOULD );
+            }
+        }
+        return new ConstantScoreQuery( any.build() );
+    }
+
+    private static String escape( String word )
+    {
+        StringBuilder escaped = new StringBuilder();
+        for ( char c : word.toCharArray() )
+        {
+            if ( c == '*' || c == '?' || c == '\\' )
+            {
+                escaped.append( '\\' );
+            }
+            escaped.append( c );
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @return the words in a dictionary file
+     */
+    public static List<String> read( String path )
+    {
+        List<String> words = new ArrayList<>();
+        try
+        {
+            for ( String line : Files.readAllLines( Paths.get( path ), StandardCharsets.UTF_8 ) )
+            {
+                String word = line.replace( "\uFEFF", "" ).trim();
+                if ( !word.isEmpty() )
+                {
+                    words.add( word );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "Cannot read IK dictionary `" + path + "`", e );
+        }
+        return words;
+    }
+
+    private static void call( String method, Collection<String> words )
+    {
+        if ( words.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            Object dictionary = dictionary();
+            dictionary.getClass().getMethod( method, Collection.class ).invoke( dictionary, words );
+        }
+        catch ( InvocationTargetException e )
+        {
+            throw new IllegalStateException( "IK dictionary update failed", e.getCause() );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new IllegalStateException( "IKAnalyzer is not available", e );
+        }
+    }
+
+    private static void stopWords( String method, Collection<String> words )
+    {
+        if ( words.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            Object dictionary = dictionary();
+            Field field = dictionary.getClass().getDeclaredField( "_StopWordDict" );
+            field.setAccessible( true );
+            Object segment = field.get( dictionary );
+            Method update = segment.getClass().getDeclaredMethod( method, char[].class );
+            update.setAccessible( true );
+            for ( String word : words )
+            {
+                // IK compares lower case, as its own loader does
+                update.invoke( segment, (Object) word.trim().toLowerCase().toCharArray() );
+            }
+        }
+        catch ( InvocationTargetException e )
+        {
+            throw new IllegalStateException( "IK dictionary update failed", e.getCause() );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new IllegalStateException( "IKAnalyzer is not available", e );
+        }
+    }
+
+    private static Object dictionary() throws ReflectiveOperationException
+    {
+        Class<?> dictionary = Class.forName( "org.wltea.analyzer.dic.Dictionary" );
+        Class<?> configuration = Class.forName( "org.wltea.analyzer.cfg.Configuration" );
+        Object defaults = Class.forName( "org.wltea.analyzer.cfg.DefaultConfig" ).getMethod( "getInstance" ).invoke( null );
+        // Loads IK's main dictionary if no analyzer has done so yet
+        return dictionary.getMethod( "initial", configuration ).invoke( null, defaults );
+    }
+}
@@ -0,0 +1,37 @@
+package extension;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+
+/**
+ * IKAnalyzer in smart mode, for index configurations.
+ *
+ * Neo4j creates the analyzer of a legacy index from its class name with the
+ * no-argument constructor, and {@code IKAnalyzer()} always segments in
+ * max-word mode (every word it finds, overlapping). This class gives smart
+ * mode (the coarsest segmentation) a class name of its own.
+ */
+public class IKSmartAnalyzer extends DelegatingAnalyzerWrapper
+{
+    private final Analyzer ik;
+
+    public IKSmartAnalyzer()
+    {
+        super( GLOBAL_REUSE_STRATEGY );
+        try
+        {
+            ik = Class.forName( Analyzers.CHINESE ).asSubclass( Analyzer.class )
+                    .getConstructor( boolean.class ).newInstance( true );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new IllegalStateException( "IKAnalyzer is not available", e );
+        }
+    }
+
+    @Override
+    protected Analyzer getWrappedAnalyzer( String fieldName )
+    {
+        return ik;
+    }
+}
@@ -0,0 +1,594 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.transaction.state.DataSourceManager;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * Index builds that run in the background, one set per database.
+ *
+ * A job indexes the nodes of its labels, each label into the index of the same
+ * name, in batches committed by a {@link BatchIndexer}. It goes through the node
+ * ids in ascending order, so that the highest node id a batch wrote means
+ * "everything up to here". Once a batch has committed, that id is stored as the
+ * index's {@link #CHECKPOINT}, together with the {@link #SIGNATURE} of the build,
+ * the properties it indexes, and the {@link #SINCE} transaction of the run.
+ *
+ * A cancelled, failed or interrupted build, even one from before a restart,
+ * continues after the checkpoint rather than from the start, but only a build of
+ * the same properties does; any other build starts over and replaces the
+ * checkpoint. Node ids are reused, and nodes are changed behind the scan, so a
+ * run that continues first reindexes the nodes up to the checkpoint that the
+ * transaction log shows were created, relabelled or changed since the earlier
+ * run started, and a run that completes a label does the same for its own
+ * transactions; if the log no longer goes back that far, the label starts over.
+ * The checkpoint is removed once the label is done.
+ *
+ * Jobs run one after the other on low priority threads, and a job can be
+ * throttled to a number of nodes per second, so that a rebuild leaves room for
+ * queries.
+ */
+public class IndexJobs
+{
+    // System property, the number of jobs that run at the same time
+    public static final String THREADS = "chinese.fulltext.index_job_threads";
+    // Index configuration key, the highest node id an unfinished build has committed
+    public static final String CHECKPOINT = "index_job.checkpoint";
+    // Index configuration key, what the build that committed the checkpoint indexes
+    public static final String SIGNATURE = CHECKPOINT + ".signature";
+    // Index configuration key, the last transaction closed when the run that committed the checkpoint started
+    public static final String SINCE = CHECKPOINT + ".since";
+
+    public enum State
+    {
+        QUEUED, RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    private final GraphDatabaseAPI db;
+    private final ExecutorService executor;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long,Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param db the database itself, the jobs run their transactions on their own threads
+     */
+    IndexJobs( GraphDatabaseAPI db )
+    {
+        this.db = db;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool( Math.max( 1, Integer.getInteger( THREADS, 1 ) ), r -> {
+            Thread thread = new Thread( r, "chinese-fulltext-job-" + threads.incrementAndGet() );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+            return thread;
+        } );
+    }
+
+    /**
+     * Queue a build of the labels' indexes.
+     *
+     * @param propKeys the properties to index, or {@code null} for all properties
+     * @param config the configuration of indexes that don't exist yet
+     * @param nodesPerSecond the most nodes to index per second, 0 for no limit
+     */
+    public Job submit( List<String> labels, String[] propKeys, Map<String,String> config, int batchSize, long nodesPerSecond )
+    {
+        Job job = new Job( ids.incrementAndGet(), labels, propKeys, config, batchSize, nodesPerSecond );
+        jobs.put( job.id, job );
+        job.schedule();
+        return job;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such job
+     */
+    public Job get( long id )
+    {
+        Job job = jobs.get( id );
+        if ( job == null )
+        {
+            throw new IllegalArgumentException( "No such index job: " + id );
+        }
+        return job;
+    }
+
+    public List<Job> all()
+    {
+        return new ArrayList<>( new TreeMap<>( jobs ).values() );
+    }
+
+    /**
+     * Run a cancelled or failed job again, from the labels and checkpoints it had not finished.
+     */
+    public Job resume( long id )
+    {
+        Job job = get( id );
+        job.resume();
+        return job;
+    }
+
+    /**
+     * Stop all jobs, for when the database shuts down. Their checkpoints stay.
+     */
+    public void shutdown()
+    {
+        jobs.values().forEach( Job::cancel );
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the checkpoint and since transaction committed by a build with the signature,
+     *         or {@code null} if there is none
+     */
+    private long[] committedCheckpoint( String indexName, String signature )
+    {
+        try ( Transaction tx = db.beginTx() )
+        {
+            IndexManager mgr = db.index();
+            Map<String,String> config = mgr.existsForNodes( indexName ) ? mgr.getConfiguration( mgr.forNodes( indexName ) ) : null;
+            tx.success();
+            if ( config == null || config.get( CHECKPOINT ) == null || config.get( SINCE ) == null ||
+                 !signature.equals( config.get( SIGNATURE ) ) )
+            {
+                return null;
+            }
+            return new long[]{Long.parseLong( config.get( CHECKPOINT ) ), Long.parseLong( config.get( SINCE ) )};
+        }
+    }
+
+    private long lastClosedTransaction()
+    {
+        return dataSource().resolveDependency( TransactionIdStore.class ).getLastClosedTransactionId();
+    }
+
+    private long highestNodeId()
+    {
+        return db.getDependencyResolver().resolveDependency( IdGeneratorFactory.class ).get( IdType.NODE ).getHighestPossibleIdInUse();
+    }
+
+    private DependencyResolver dataSource()
+    {
+        return db.getDependencyResolver().resolveDependency( DataSourceManager.class ).getDataSource().getDependencyResolver();
+    }
+
+    /**
+     * @return whether the node exists and has the label
+     */
+    private boolean hasLabel( long nodeId, Label label )
+    {
+        try
+        {
+            return db.getNodeById( nodeId ).hasLabel( label );
+        }
+        catch ( NotFoundException e )
+        {
+            return false;
+        }
+    }
+
+    private long count( String label )
+    {
+        // From the counts store, not a scan
+        try ( Result result = db.execute( "MATCH (n:`" + label.replace( "`", "``" ) + "`) RETURN count(n) AS nodes" ) )
+        {
+            return ((Number) result.next().get( "nodes" )).longValue();
+        }
+    }
+
+    private long countUpTo( String label, long nodeId )
+    {
+        try ( Result result = db.execute( "MATCH (n:`" + label.replace( "`", "``" ) + "`) WHERE id(n) <= {id} RETURN count(n) AS nodes",
+                Collections.singletonMap( "id", nodeId ) ) )
+        {
+            return ((Number) result.next().get( "nodes" )).longValue();
+        }
+    }
+
+    /**
+     * One build. Progress is read from other threads while it runs.
+     */
+    public class Job
+    {
+        public final long id;
+        public final List<String> labels;
+        private final String[] propKeys;
+        private final Map<String,String> config;
+        private final int batchSize;
+        private final Set<String> finished = ConcurrentHashMap.newKeySet();
+
+        private volatile long nodesPerSecond;
+        private volatile State state;
+        private volatile boolean cancelled;
+        private volatile String label;
+        private volatile String error;
+        private volatile long checkpoint = -1;
+        private volatile Future<?> future;
+
+        // Of the current run: nodes to go through, gone through (also those before a checkpoint), and indexed
+        private volatile long total;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong indexed = new AtomicLong();
+        private volatile long runStarted;
+        private volatile long runEnded;
+
+        // Only touched by the job's thread
+        private long throttleRate;
+        private long throttleStarted;
+        private long throttled;
+
+        private Job( long id, List<String> labels, String[] propKeys, Map<String,String> config, int batchSize, long nodesPerSecond )
+        {
+            this.id = id;
+            this.labels = Collections.unmodifiableList( new ArrayList<>( labels ) );
+            this.propKeys = propKeys;
+            this.config = config;
+            this.batchSize = batchSize;
+            this.nodesPerSecond = nodesPerSecond;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the job is not cancelled or failed
+         */
+        private synchronized void resume()
+        {
+            if ( state != State.CANCELLED && state != State.FAILED )
+            {
+                throw new IllegalArgumentException( "Index job " + id + " is " + state + ", only cancelled or failed jobs resume" );
+            }
+            schedule();
+        }
+
+        private synchronized void schedule()
+        {
+            state = State.QUEUED;
+            cancelled = false;
+            error = null;
+            future = executor.submit( this::run );
+        }
+
+        /**
+         * Stop after the batch being written; what was committed stays, and the job can be resumed.
+         */
+        public synchronized void cancel()
+        {
+            cancelled = true;
+            if ( state == State.QUEUED && future != null && future.cancel( false ) )
+            {
+                state = State.CANCELLED;
+            }
+        }
+
+        /**
+         * @param nodesPerSecond the most nodes to index per second from now on, 0 for no limit
+         */
+        public void throttle( long nodesPerSecond )
+        {
+            this.nodesPerSecond = Math.max( 0, nodesPerSecond );
+        }
+
+        private void run()
+        {
+            if ( cancelled )
+            {
+                state = State.CANCELLED;
+                return;
+            }
+            state = State.RUNNING;
+            processed.set( 0 );
+            indexed.set( 0 );
+            runStarted = System.nanoTime();
+            runEnded = 0;
+            throttleRate = -1;
+            try
+            {
+                long nodes = 0;
+                for ( String label : labels )
+                {
+                    if ( !finished.contains( label ) )
+                    {
+                        nodes += count( label );
+                    }
+                }
+                total = nodes;
+                for ( String label : labels )
+                {
+                    if ( cancelled )
+                    {
+                        break;
+                    }
+                    if ( !finished.contains( label ) )
+                    {
+                        this.label = label;
+                        if ( build( label ) )
+                        {
+                            finished.add( label );
+                        }
+                    }
+                }
+                state = cancelled ? State.CANCELLED : State.DONE;
+            }
+            catch ( InterruptedException e )
+            {
+                state = State.CANCELLED;
+            }
+            catch ( RuntimeException e )
+            {
+                error = e.getCause() != null ? e.getMessage() + ": " + e.getCause().getMessage() : e.getMessage();
+                state = cancelled ? State.CANCELLED : State.FAILED;
+            }
+            finally
+            {
+                runEnded = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return whether every node of the label was indexed
+         */
+        private boolean build( String label ) throws InterruptedException
+        {
+            String indexName = label;
+            Label nodeLabel = Label.label( label );
+            String signature = propKeys == null ? "*" : String.join( ",", propKeys );
+            // Before anything is read, so that every change the scan may miss comes after it
+            long since = lastClosedTransaction();
+            long[] committed = committedCheckpoint( indexName, signature );
+            long after = -1;
+            Set<Long> changed = new TreeSet<>();
+            if ( committed != null )
+            {
+                try
+                {
+                    IndexSnapshot.changedNodes( db, committed[1], changed );
+                    after = committed[0];
+                }
+                catch ( IllegalStateException e )
+                {
+                    // The log no longer shows what changed behind the checkpoint
+                    changed.clear();
+                }
+            }
+            checkpoint = after;
+            boolean complete = false;
+            Map<String,String> settings = new HashMap<>();
+            settings.put( SIGNATURE, signature );
+            settings.put( SINCE, String.valueOf( since ) );
+            try ( BatchIndexer indexer = indexer( indexName, settings ) )
+            {
+                try
+                {
+                    try ( Transaction tx = db.beginTx() )
+                    {
+                        // Behind the checkpoint: nodes created with a reused id, or changed, since it was written
+                        for ( long nodeId : changed )
+                        {
+                            if ( nodeId <= after && hasLabel( nodeId, nodeLabel ) )
+                            {
+                                indexer.add( nodeId );
+                                indexed.incrementAndGet();
+                            }
+                        }
+                        if ( after >= 0 )
+                        {
+                            processed.addAndGet( countUpTo( label, after ) );
+                        }
+                        long highest = highestNodeId();
+                        for ( long nodeId = after + 1; nodeId <= highest && !cancelled; nodeId++ )
+                        {
+                            if ( !hasLabel( nodeId, nodeLabel ) )
+                            {
+                                continue;
+                            }
+                            processed.incrementAndGet();
+                            indexer.add( nodeId );
+                            indexed.incrementAndGet();
+                            checkpoint = nodeId;
+                            pace();
+                        }
+                        tx.success();
+                    }
+                    boolean scanned = !cancelled;
+                    if ( scanned )
+                    {
+                        // Created behind the scan, or above the highest id it started with, while it ran
+                        Set<Long> late = new TreeSet<>();
+                        IndexSnapshot.changedNodes( db, since, late );
+                        try ( Transaction tx = db.beginTx() )
+                        {
+                            for ( long nodeId : late )
+                            {
+                                if ( hasLabel( nodeId, nodeLabel ) )
+                                {
+                                    indexer.add( nodeId );
+                                }
+                            }
+                            tx.success();
+                        }
+                    }
+                    indexer.flush();
+                    // Only once everything is committed, the checkpoint goes with it
+                    complete = scanned;
+                }
+                finally
+                {
+                    finish( indexName, indexer, complete );
+                }
+            }
+            return complete;
+        }
+
+        private BatchIndexer indexer( String indexName, Map<String,String> checkpointSettings )
+        {
+            // It looks the index up, which takes a transaction
+            try ( Transaction tx = db.beginTx() )
+            {
+                BatchIndexer indexer = new BatchIndexer( db, indexName, config, propKeys, batchSize ).withCheckpoint( CHECKPOINT, checkpointSettings );
+                tx.success();
+                return indexer;
+            }
+        }
+
+        /**
+         * Record the keys written so far, and drop the checkpoint once the whole label is in.
+         */
+        private void finish( String indexName, BatchIndexer indexer, boolean complete )
+        {
+            try ( Transaction tx = db.beginTx() )
+            {
+                PropertyCatalog.record( db, indexName, indexer.indexedKeys() );
+                IndexManager mgr = db.index();
+                if ( complete && mgr.existsForNodes( indexName ) )
+                {
+                    Index<Node> index = mgr.forNodes( indexName );
+                    mgr.removeConfiguration( index, CHECKPOINT );
+                    mgr.removeConfiguration( index, SIGNATURE );
+                    mgr.removeConfiguration( index, SINCE );
+                }
+                tx.success();
+            }
+            IndexRegistry.of( db ).invalidate( indexName );
+        }
+
+        private void pace() throws InterruptedException
+        {
+            long rate = nodesPerSecond;
+            if ( rate != throttleRate )
+            {
+                // Start over at the new rate
+                throttleRate = rate;
+                throttleStarted = System.nanoTime();
+                throttled = 0;
+            }
+            if ( rate <= 0 )
+            {
+                return;
+            }
+            throttled++;
+            long wait = throttleStarted + throttled * 1_000_000_000L / rate - System.nanoTime();
+            if ( wait >= 1_000_000 )
+            {
+                TimeUnit.NANOSECONDS.sleep( wait );
+            }
+        }
+
+        public State state()
+        {
+            return state;
+        }
+
+        /**
+         * @return the label being indexed, or last indexed
+         */
+        public String label()
+        {
+            return label;
+        }
+
+        public List<String> finishedLabels()
+        {
+            List<String> done = new ArrayList<>();
+            for ( String label : labels )
+            {
+                if ( finished.contains( label ) )
+                {
+                    done.add( label );
+                }
+            }
+            return done;
+        }
+
+        public long total()
+        {
+            return total;
+        }
+
+        public long processed()
+        {
+            return processed.get();
+        }
+
+        public long indexed()
+        {
+            return indexed.get();
+        }
+
+        /**
+         * @return the last node id handed to the indexer, -1 before any
+         */
+        public long checkpoint()
+        {
+            return checkpoint;
+        }
+
+        public long throttleNodesPerSecond()
+        {
+            return nodesPerSecond;
+        }
+
+        public String error()
+        {
+            return error;
+        }
+
+        public long elapsedMillis()
+        {
+            long started = runStarted;
+            if ( started == 0 )
+            {
+                return 0;
+            }
+            long ended = runEnded;
+            return ((ended == 0 ? System.nanoTime() : ended) - started) / 1_000_000;
+        }
+
+        public double nodesPerSecond()
+        {
+            long elapsed = elapsedMillis();
+            return elapsed == 0 ? 0 : indexed() * 1000.0 / elapsed;
+        }
+
+        /**
+         * @return the estimated seconds left at the current rate, -1 when unknown
+         */
+        public long etaSeconds()
+        {
+            if ( state == State.DONE )
+            {
+                return 0;
+            }
+            long elapsed = elapsedMillis();
+            long processed = processed();
+            if ( elapsed == 0 || processed == 0 )
+            {
+                return -1;
+            }
+            return Math.max( 0, total() - processed ) * elapsed / processed / 1000;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package extension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.logging.Log;
+
+/**
+ * Keeps auto-maintained full-text indexes in step with the graph.
+ *
+ * An index is auto-maintained when its configuration carries {@link #LABEL}
+ * (and optionally {@link #PROPERTIES}), see
+ * {@link FullTextIndex#autoUpdate(String, String, List, boolean)}. Before a
+ * transaction commits, only the nodes it touched are re-indexed or removed,
+ * in that same transaction, so the index never lags behind the data.
+ */
+public class IndexMaintenance extends TransactionEventHandler.Adapter<Object>
+{
+    // Index configuration keys recording what an index maintains
+    public static final String LABEL = "auto_update.label";
+    public static final String PROPERTIES = "auto_update.properties";
+
+    // Bumped whenever an auto-update configuration changes, so handlers reload it
+    private static final AtomicLong VERSION = new AtomicLong();
+    private static final ThreadLocal<Boolean> CHANGED_IN_TX = new ThreadLocal<>();
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private volatile long loadedVersion = -1;
+    private volatile Map<String,Spec> specs = Collections.emptyMap();
+
+    public IndexMaintenance( GraphDatabaseService db, Log log )
+    {
+        this.db = db;
+        this.log = log;
+    }
+
+    /**
+     * Called when an auto-update configuration is written, in the writing transaction.
+     */
+    public static void configurationChanged()
+    {
+        VERSION.incrementAndGet();
+        CHANGED_IN_TX.set( Boolean.TRUE );
+    }
+
+    @Override
+    public Object beforeCommit( TransactionData data ) throws Exception
+    {
+        Map<String,Spec> specs = specs();
+        if ( specs.isEmpty() )
+        {
+            return null;
+        }
+
+        // index name -> nodes to re-index, and index name -> nodes to drop
+        Map<String,Set<Node>> updated = new HashMap<>();
+        Map<String,Set<Node>> removed = new HashMap<>();
+        for ( Map.Entry<String,Spec> entry : specs.entrySet() )
+        {
+            String indexName = entry.getKey();
+            Spec spec = entry.getValue();
+            for ( PropertyEntry<Node> property : data.assignedNodeProperties() )
+            {
+                touched( data, spec, property, updated, indexName );
+            }
+            for ( PropertyEntry<Node> property : data.removedNodeProperties() )
+            {
+                touched( data, spec, property, updated, indexName );
+            }
+            for ( LabelEntry labelEntry : data.assignedLabels() )
+            {
+                if ( spec.label.equals( labelEntry.label().name() ) && !data.isDeleted( labelEntry.node() ) )
+                {
+                    updated.computeIfAbsent( indexName, k -> new HashSet<>() ).add( labelEntry.node() );
+                }
+            }
+            // A deleted node shows up here with every label it had, so this also drops deleted nodes
+            for ( LabelEntry labelEntry : data.removedLabels() )
+            {
+                if ( spec.label.equals( labelEntry.label().name() ) )
+                {
+                    removed.computeIfAbsent( indexName, k -> new HashSet<>() ).add( labelEntry.node() );
+                }
+            }
+        }
+
+        IndexManager mgr = db.index();
+        for ( Map.Entry<String,Set<Node>> entry : removed.entrySet() )
+        {
+            Index<Node> index = mgr.forNodes( entry.getKey() );
+            for ( Node node : entry.getValue() )
+            {
+                remove( index, node );
+                Set<Node> stillUpdated = updated.get( entry.getKey() );
+                if ( stillUpdated != null )
+                {
+                    stillUpdated.remove( node );
+                }
+            }
+            IndexRegistry.of( db ).invalidate( entry.getKey() );
+        }
+        for ( Map.Entry<String,Set<Node>> entry : updated.entrySet() )
+        {
+            long start = System.nanoTime();
+            Spec spec = specs.get( entry.getKey() );
+            Index<Node> index = mgr.forNodes( entry.getKey() );
+            IndexRegistry.of( db ).prepareWrites( db, entry.getKey() );
+            FieldMappings mappings = FieldMappings.of( mgr.getConfiguration( index ) );
+            Set<String> indexedKeys = new HashSet<>();
+            for ( Node node : entry.getValue() )
+            {
+                index.remove( node );
+                Map<String,Object> properties = spec.properties == null ? node.getAllProperties() : node.getProperties( spec.properties );
+                for ( Map.Entry<String,Object> property : properties.entrySet() )
+                {
+                    if ( mappings.add( index, node, property.getKey(), property.getValue() ) )
+                    {
+                        indexedKeys.add( property.getKey() );
+                    }
+                }
+            }
+            PropertyCatalog.record( db, entry.getKey(), indexedKeys );
+            IndexRegistry.of( db ).invalidate( entry.getKey() );
+            IndexRegistry.of( db ).metrics().indexed( entry.getKey(), entry.getValue().size(), System.nanoTime() - start );
+        }
+        return null;
+    }
+
+    @Override
+    public void afterCommit( TransactionData data, Object state )
+    {
+        // The configuration written by this transaction is visible now
+        if ( CHANGED_IN_TX.get() != null )
+        {
+            CHANGED_IN_TX.remove();
+            VERSION.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void afterRollback( TransactionData data, Object state )
+    {
+        if ( CHANGED_IN_TX.get() != null )
+        {
+            CHANGED_IN_TX.remove();
+            VERSION.incrementAndGet();
+        }
+    }
+
+    private static void touched( TransactionData data, Spec spec, PropertyEntry<Node> property,
+                                 Map<String,Set<Node>> updated, String indexName )
+    {
+        Node node = property.entity();
+        if ( data.isDeleted( node ) || !spec.covers( property.key() ) )
+        {
+            return;
+        }
+        if ( node.hasLabel( Label.label( spec.label ) ) )
+        {
+            updated.computeIfAbsent( indexName, k -> new HashSet<>() ).add( node );
+        }
+    }
+
+    private void remove( Index<Node> index, Node node )
+    {
+        try
+        {
+            index.remove( node );
+        }
+        catch ( NotFoundException e )
+        {
+            // Deleted in this transaction, its entries go away with it
+            log.debug( "Node %d already gone from index `%s`", node.getId(), index.getName() );
+        }
+    }
+
+    private Map<String,Spec> specs()
+    {
+        long version = VERSION.get();
+        if ( version != loadedVersion )
+        {
+            Map<String,Spec> loaded = new HashMap<>();
+            IndexManager mgr = db.index();
+            for ( String indexName : mgr.nodeIndexNames() )
+            {
+                Map<String,String> config = mgr.getConfiguration( mgr.forNodes( indexName ) );
+                String label = config.get( LABEL );
+                if ( label != null )
+                {
+                    // Segment new text with the index's custom words, even before anything searched it
+                    IKDictionary.load( config );
+                    loaded.put( indexName, new Spec( label, config.get( PROPERTIES ) ) );
+                }
+            }
+            specs = loaded;
+            loadedVersion = version;
+        }
+        return specs;
+    }
+
+    /**
+     * The label and properties (all when {@code null}) an index keeps up to date.
+     */
+    static class Spec
+    {
+        final String label;
+        final String[] properties;
+
+        Spec( String label, String properties )
+        {
+            this.label = label;
+            this.properties = properties == null || properties.isEmpty() ? null : properties.split( "," );
+        }
+
+        boolean covers( String propKey )
+        {
+            return properties == null || Arrays.asList( properties ).contains( propKey );
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package extension;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+/**
+ * Registers {@link IndexMaintenance} with every database the plugin is loaded into,
+ * and publishes its {@link QueryMetrics} over JMX as
+ * {@code extension:type=ChineseFulltextIndex,database=<store directory>}.
+ * Stops the database's {@link IndexJobs} when it shuts down.
+ */
+public class IndexMaintenanceExtensionFactory extends KernelExtensionFactory<IndexMaintenanceExtensionFactory.Dependencies>
+{
+    public interface Dependencies
+    {
+        GraphDatabaseAPI graphdatabaseAPI();
+
+        LogService log();
+    }
+
+    public IndexMaintenanceExtensionFactory()
+    {
+        super( "chinese-fulltext-index-maintenance" );
+    }
+
+    @Override
+    public Lifecycle newInstance( KernelContext context, Dependencies dependencies ) throws Throwable
+    {
+        GraphDatabaseAPI db = dependencies.graphdatabaseAPI();
+        IndexMaintenance handler = new IndexMaintenance( db, dependencies.log().getUserLog( IndexMaintenance.class ) );
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName metrics = new ObjectName( "extension:type=ChineseFulltextIndex,database=" + ObjectName.quote( db.getStoreDir() ) );
+        return new LifecycleAdapter()
+        {
+            @Override
+            public void start() throws Throwable
+            {
+                db.registerTransactionEventHandler( handler );
+                if ( !server.isRegistered( metrics ) )
+                {
+                    server.registerMBean( IndexRegistry.of( db ).metrics(), metrics );
+                }
+            }
+
+            @Override
+            public void stop() throws Throwable
+            {
+                db.unregisterTransactionEventHandler( handler );
+                // Builds continue from their checkpoints when submitted again
+                IndexRegistry.of( db ).stopJobs();
+                if ( server.isRegistered( metrics ) )
+                {
+                    server.unregisterMBean( metrics );
+                }
+            }
+        };
+    }
+}
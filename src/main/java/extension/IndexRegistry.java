@@ -0,0 +1,414 @@
+package extension;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.LegacyIndexHits;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.legacyindex.LegacyIndexNotFoundKernelException;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.coreapi.LegacyIndexProxy;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * Read-only handles to the node indexes that already exist, one registry per database.
+ *
+ * {@code db.index().forNodes(...)} creates the index if it is missing, which needs
+ * a write transaction even when the index is there. Handles from this registry
+ * never create anything, so procedures that only search can run in {@code Mode.READ}.
+ * The registry caches which indexes exist together with their configuration. The
+ * index procedures refresh an entry when they create, reconfigure or delete the
+ * index, and an index deleted behind our back is evicted the first time a query
+ * misses it.
+ *
+ * Every index also has a generation, bumped whenever it is written to or
+ * invalidated, and a Lucene reader version, which moves with every commit that
+ * reaches the index. Together they tell the {@link ResultCache} whether a cached
+ * result still holds.
+ */
+public class IndexRegistry
+{
+    // Keyed by the database's statement bridge, which lives exactly as long as the database
+    private static final Map<ThreadToStatementContextBridge,IndexRegistry> REGISTRIES =
+            Collections.synchronizedMap( new WeakHashMap<>() );
+
+    private final ThreadToStatementContextBridge bridge;
+    private final Map<String,Map<String,String>> configs = new ConcurrentHashMap<>();
+    private final Map<String,AtomicLong> generations = new ConcurrentHashMap<>();
+    // Open transactions that wrote to an index, only for indexes that have any
+    private final Map<String,AtomicInteger> writers = new ConcurrentHashMap<>();
+    private final ResultCache results = new ResultCache( this );
+    private final QueryMetrics metrics = new QueryMetrics();
+    private final Map<String,Suggester> suggesters = new ConcurrentHashMap<>();
+    // Indexes whose suggester is being rebuilt in the background
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean rebuildFailed = new AtomicBoolean();
+    private ExecutorService rebuilds;
+    // The tuning settings each live writer was given; Neo4j may open a new writer for the same index
+    private final Map<IndexWriter,Map<String,String>> tuned = Collections.synchronizedMap( new WeakHashMap<>() );
+    private final AtomicBoolean tuningFailed = new AtomicBoolean();
+    private IndexJobs jobs;
+
+    private IndexRegistry( ThreadToStatementContextBridge bridge )
+    {
+        this.bridge = bridge;
+    }
+
+    public static IndexRegistry of( GraphDatabaseService db )
+    {
+        ThreadToStatementContextBridge bridge = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency( ThreadToStatementContextBridge.class );
+        return REGISTRIES.computeIfAbsent( bridge, IndexRegistry::new );
+    }
+
+    /**
+     * @return a handle to the existing index, or {@code null} if there is no such index
+     */
+    public Index<Node> forNodes( GraphDatabaseService db, String name )
+    {
+        return configuration( db, name ) == null ? null : handle( db, name );
+    }
+
+    /**
+     * @return the stored configuration of the index, or {@code null} if there is no such index
+     */
+    public Map<String,String> configuration( GraphDatabaseService db, String name )
+    {
+        Map<String,String> config = configs.get( name );
+        if ( config == null )
+        {
+            IndexManager mgr = db.index();
+            if ( !mgr.existsForNodes( name ) )
+            {
+                return null;
+            }
+            config = mgr.getConfiguration( handle( db, name ) );
+            configs.put( name, config );
+        }
+        return config;
+    }
+
+    /**
+     * Query an existing index.
+     *
+     * @return the hits, or {@code null} if there is no such index
+     */
+    public IndexHits<Node> query( GraphDatabaseService db, String name, Object queryOrQueryObject )
+    {
+        Index<Node> index = forNodes( db, name );
+        if ( index == null )
+        {
+            return null;
+        }
+        try
+        {
+            return index.query( queryOrQueryObject );
+        }
+        catch ( NotFoundException e )
+        {
+            // Deleted without going through our procedures
+            invalidate( name );
+            return null;
+        }
+    }
+
+    /**
+     * Query an existing index for node ids and scores only, without looking any node up.
+     *
+     * @return the hits, or {@code null} if there is no such index
+     */
+    public NodeIdHits queryIds( GraphDatabaseService db, String name, Object queryOrQueryObject )
+    {
+        if ( configuration( db, name ) == null )
+        {
+            return null;
+        }
+        Statement statement = bridge.get();
+        try
+        {
+            LegacyIndexHits hits = statement.readOperations().nodeLegacyIndexQuery( name, queryOrQueryObject );
+            return new NodeIdHits( statement, hits );
+        }
+        catch ( LegacyIndexNotFoundKernelException e )
+        {
+            statement.close();
+            invalidate( name );
+            return null;
+        }
+    }
+
+    /**
+     * Forget what we know about an index, after it was created, written to, reconfigured or deleted.
+     *
+     * Until the writing transaction ends, readers still see the old index and may cache
+     * what they see, so the index is invalidated once more when that transaction closes.
+     */
+    public void invalidate( String name )
+    {
+        changed( name );
+        KernelTransaction tx = bridge.getKernelTransactionBoundToThisThread( false );
+        if ( tx != null )
+        {
+            writers.compute( name, ( k, open ) -> {
+                AtomicInteger writing = open == null ? new AtomicInteger() : open;
+                writing.incrementAndGet();
+                return writing;
+            } );
+            tx.registerCloseListener( txId -> {
+                changed( name );
+                writers.computeIfPresent( name, ( k, open ) -> open.decrementAndGet() > 0 ? open : null );
+            } );
+        }
+    }
+
+    public void invalidateAll()
+    {
+        changedAll();
+        KernelTransaction tx = bridge.getKernelTransactionBoundToThisThread( false );
+        if ( tx != null )
+        {
+            tx.registerCloseListener( txId -> changedAll() );
+        }
+    }
+
+    /**
+     * @return the current generation of the index, which changes on every invalidation
+     */
+    public long generation( String name )
+    {
+        return generations.computeIfAbsent( name, k -> new AtomicLong() ).get();
+    }
+
+    /**
+     * @return the version of what the index's searcher sees, which changes whenever a commit
+     *         reaches the index, or -1 if there is no such index
+     */
+    public long version( GraphDatabaseService db, String name )
+    {
+        if ( configuration( db, name ) == null )
+        {
+            return -1;
+        }
+        return LuceneIndexes.withIndex( db, name, ( writer, searcher ) -> {
+            IndexReader reader = searcher.getIndexReader();
+            // Any other reader is replaced as a whole when the searcher is refreshed
+            return reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : System.identityHashCode( reader );
+        } );
+    }
+
+    /**
+     * @return whether a transaction that wrote to the index is still open
+     */
+    public boolean isWriting( String name )
+    {
+        AtomicInteger open = writers.get( name );
+        return open != null && open.get() > 0;
+    }
+
+    /**
+     * The first suggester of an index is built by the caller. Once it is stale it keeps
+     * being returned while a new one is built in the background, and is then replaced.
+     *
+     * @param db the database itself, the background rebuild runs its own transaction on it
+     * @return the suggester of an existing index, or {@code null} if there is no such index
+     */
+    public Suggester suggester( GraphDatabaseAPI db, String name )
+    {
+        Map<String,String> config = configuration( db, name );
+        if ( config == null )
+        {
+            return null;
+        }
+        long generation = generation( name );
+        Suggester current = suggesters.get( name );
+        if ( current == null )
+        {
+            Suggester built = Suggester.build( db, name, config, generation );
+            current = suggesters.putIfAbsent( name, built );
+            return current == null ? built : current;
+        }
+        if ( current.isStale( generation ) && rebuilding.add( name ) )
+        {
+            try
+            {
+                rebuilds().execute( () -> rebuild( db, name ) );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // Shutting down
+                rebuilding.remove( name );
+            }
+        }
+        return current;
+    }
+
+    private void rebuild( GraphDatabaseAPI db, String name )
+    {
+        try ( Transaction tx = db.beginTx() )
+        {
+            // The generation before the terms, so changes made while reading them make it stale again
+            long generation = generation( name );
+            Map<String,String> config = configuration( db, name );
+            if ( config == null )
+            {
+                suggesters.remove( name );
+            }
+            else
+            {
+                Suggester rebuilt = Suggester.build( db, name, config, generation );
+                suggesters.replace( name, rebuilt );
+            }
+            tx.success();
+        }
+        catch ( RuntimeException e )
+        {
+            // The old suggester keeps serving, and the next suggestion tries again
+            if ( rebuildFailed.compareAndSet( false, true ) )
+            {
+                db.getDependencyResolver().resolveDependency( LogService.class )
+                        .getUserLog( IndexRegistry.class )
+                        .warn( "Could not rebuild the suggestions of index `%s`, suggestions may miss new terms: %s", name, e );
+            }
+        }
+        finally
+        {
+            rebuilding.remove( name );
+        }
+    }
+
+    private synchronized ExecutorService rebuilds()
+    {
+        if ( rebuilds == null )
+        {
+            rebuilds = Executors.newSingleThreadExecutor( r -> {
+                Thread thread = new Thread( r, "chinese-fulltext-suggest" );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            } );
+        }
+        return rebuilds;
+    }
+
+    /**
+     * @return the background index builds of the database, started on first use
+     */
+    public synchronized IndexJobs jobs( GraphDatabaseAPI db )
+    {
+        if ( jobs == null )
+        {
+            jobs = new IndexJobs( db );
+        }
+        return jobs;
+    }
+
+    /**
+     * Stop the background index builds and suggester rebuilds, if any were ever started.
+     */
+    public synchronized void stopJobs()
+    {
+        if ( jobs != null )
+        {
+            jobs.shutdown();
+            jobs = null;
+        }
+        if ( rebuilds != null )
+        {
+            rebuilds.shutdownNow();
+            rebuilds = null;
+        }
+    }
+
+    public ResultCache results()
+    {
+        return results;
+    }
+
+    /**
+     * @return latency and indexing statistics of the procedures on this database
+     */
+    public QueryMetrics metrics()
+    {
+        return metrics;
+    }
+
+    private void changed( String name )
+    {
+        configs.remove( name );
+        generations.computeIfAbsent( name, k -> new AtomicLong() ).incrementAndGet();
+    }
+
+    private void changedAll()
+    {
+        configs.clear();
+        generations.values().forEach( AtomicLong::incrementAndGet );
+    }
+
+    /**
+     * Ready an index to be written to: load its custom dictionaries into IK and give its writer
+     * our settings. Neo4j opens index writers with default settings, ours are put back the first
+     * time we see a writer. Searches need neither, so only the write paths call this.
+     */
+    public void prepareWrites( GraphDatabaseService db, String name )
+    {
+        Map<String,String> config = configuration( db, name );
+        if ( config == null )
+        {
+            return;
+        }
+        IKDictionary.load( config );
+        Map<String,String> settings = IndexTuning.settings( config );
+        if ( settings.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            LuceneIndexes.withIndex( db, name, ( writer, searcher ) -> {
+                // The configuration is reloaded after every write, the writer only needs it once
+                if ( !settings.equals( tuned.get( writer ) ) )
+                {
+                    IndexTuning.apply( writer, config );
+                    tuned.put( writer, settings );
+                }
+                return null;
+            } );
+        }
+        catch ( RuntimeException | LinkageError e )
+        {
+            // Only a performance setting, never worth failing a write over, nor flooding the log
+            if ( tuningFailed.compareAndSet( false, true ) )
+            {
+                ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency( LogService.class )
+                        .getUserLog( IndexRegistry.class )
+                        .warn( "Could not apply the Lucene writer settings of index `%s`, it keeps the defaults: %s", name, e );
+            }
+        }
+    }
+
+    private Index<Node> handle( GraphDatabaseService db, String name )
+    {
+        return new LegacyIndexProxy<>( name, LegacyIndexProxy.Type.NODE, db, bridge );
+    }
+}
@@ -0,0 +1,569 @@
+package extension;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.kernel.impl.store.StoreId;
+import org.neo4j.kernel.impl.store.record.NodeRecord;
+import org.neo4j.kernel.impl.transaction.CommittedTransactionRepresentation;
+import org.neo4j.kernel.impl.transaction.command.Command;
+import org.neo4j.kernel.impl.transaction.log.LogicalTransactionStore;
+import org.neo4j.kernel.impl.transaction.log.NoSuchTransactionException;
+import org.neo4j.kernel.impl.transaction.log.TransactionCursor;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.transaction.state.DataSourceManager;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * A built node index as one file, to restore instead of rebuilding it.
+ *
+ * Snapshots live in the directory named by the {@link #SNAPSHOT_DIR} system
+ * property, and are only read and written there; without it they are disabled.
+ *
+ * The file holds the index name, the store id of the database, the last
+ * transaction included in it, the index configuration and the segment files of
+ * a Lucene commit point, each with its
+ * length up front and a CRC32 after it, then a CRC32 of the whole file. It is
+ * written and read in a single sequential pass; the lengths also allow mapping
+ * it. The commit point is pinned through the writer's snapshot deletion policy,
+ * the same one online backup uses, so searches and writes go on while it is copied.
+ *
+ * Importing verifies every checksum before the index is touched, then replaces
+ * its documents with the snapshot's segments. Nodes changed by transactions
+ * after the snapshot are found in the transaction log, see {@link #changedNodes},
+ * so a snapshot only imports into the store it was taken from, or a copy of it
+ * (a backup, a cluster member) that has caught up with it.
+ */
+public class IndexSnapshot
+{
+    // System property, the directory snapshots are exported to and imported from
+    public static final String SNAPSHOT_DIR = "chinese.fulltext.snapshot_dir";
+
+    private static final String MAGIC = "chinese-fulltext-snapshot";
+    // 2 added the store id
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // The field the legacy index keeps the node id of a document in
+    private static final String DOC_ID = "_id_";
+
+    // Settings fixed when an index is created
+    private static final String[] FIXED = {IndexManager.PROVIDER, "type", "analyzer", "to_lower_case", "similarity"};
+
+    public final String index;
+    public final StoreId storeId;
+    public final long transactionId;
+    public final Map<String,String> config;
+    public final long files;
+    public final long bytes;
+
+    private IndexSnapshot( String index, StoreId storeId, long transactionId, Map<String,String> config, long files, long bytes )
+    {
+        this.index = index;
+        this.storeId = storeId;
+        this.transactionId = transactionId;
+        this.config = config;
+        this.files = files;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param path a file name, or path, relative to the {@link #SNAPSHOT_DIR}
+     * @return the snapshot file
+     * @throws IllegalStateException if no snapshot directory is configured
+     * @throws IllegalArgumentException if the path leads out of the snapshot directory
+     */
+    public static File file( String path )
+    {
+        String configured = System.getProperty( SNAPSHOT_DIR );
+        if ( configured == null || configured.isEmpty() )
+        {
+            throw new IllegalStateException( "Index snapshots are disabled, set the system property " + SNAPSHOT_DIR +
+                    " to the directory to keep them in" );
+        }
+        try
+        {
+            Path directory = new File( configured ).toPath().toRealPath();
+            Path file = directory.resolve( path ).normalize();
+            if ( file.equals( directory ) || !file.startsWith( directory ) ||
+                 // Nor out through a link
+                 !(Files.exists( file ) ? file : file.getParent()).toRealPath().startsWith( directory ) )
+            {
+                throw new IllegalArgumentException( "Snapshot `" + path + "` is outside of the snapshot directory " + SNAPSHOT_DIR );
+            }
+            return file.toFile();
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "No such snapshot directory or path: `" + path + "` in " + SNAPSHOT_DIR + " `" + configured + "`", e );
+        }
+    }
+
+    /**
+     * Write the current state of a node index to the target file.
+     *
+     * @param overwrite whether to replace an existing file, which is refused otherwise
+     */
+    public static IndexSnapshot export( GraphDatabaseService db, String indexName, File target, boolean overwrite )
+    {
+        if ( !overwrite && target.exists() )
+        {
+            throw new IllegalArgumentException( "Snapshot `" + target.getName() + "` already exists, pass overwrite to replace it" );
+        }
+        Map<String,String> config;
+        try ( Transaction tx = db.beginTx() )
+        {
+            IndexManager mgr = db.index();
+            if ( !mgr.existsForNodes( indexName ) )
+            {
+                throw new IllegalArgumentException( "No such index: `" + indexName + "`" );
+            }
+            config = new LinkedHashMap<>( mgr.getConfiguration( mgr.forNodes( indexName ) ) );
+            tx.success();
+        }
+        // Everything closed before this is in the writer, so committing it covers the transaction
+        long transactionId = resolver( db ).resolveDependency( TransactionIdStore.class ).getLastClosedTransactionId();
+        StoreId storeId = storeId( db );
+        File partial = new File( target.getPath() + ".partial" );
+        IndexSnapshot snapshot;
+        try
+        {
+            snapshot = LuceneIndexes.withIndex( db, indexName, ( writer, searcher ) -> {
+                writer.commit();
+                IndexDeletionPolicy policy = writer.getConfig().getIndexDeletionPolicy();
+                if ( !(policy instanceof SnapshotDeletionPolicy) )
+                {
+                    throw new IllegalStateException( "Index `" + indexName + "` cannot be snapshotted while open" );
+                }
+                SnapshotDeletionPolicy snapshots = (SnapshotDeletionPolicy) policy;
+                IndexCommit commit = snapshots.snapshot();
+                try ( CheckedOutputStream out = new CheckedOutputStream(
+                        new BufferedOutputStream( new FileOutputStream( partial ), BUFFER_SIZE ), new CRC32() ) )
+                {
+                    return write( out, indexName, storeId, transactionId, config, commit );
+                }
+                finally
+                {
+                    snapshots.release( commit );
+                }
+            } );
+        }
+        catch ( RuntimeException e )
+        {
+            partial.delete();
+            throw e;
+        }
+        try
+        {
+            if ( overwrite )
+            {
+                Files.move( partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+            else
+            {
+                Files.move( partial.toPath(), target.toPath() );
+            }
+        }
+        catch ( FileAlreadyExistsException e )
+        {
+            partial.delete();
+            throw new IllegalArgumentException( "Snapshot `" + target.getName() + "` already exists, pass overwrite to replace it" );
+        }
+        catch ( IOException e )
+        {
+            partial.delete();
+            throw new RuntimeException( "Failed to write snapshot `" + target + "`", e );
+        }
+        return snapshot;
+    }
+
+    private static IndexSnapshot write( CheckedOutputStream checked, String indexName, StoreId storeId, long transactionId,
+                                        Map<String,String> config, IndexCommit commit ) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( checked );
+        out.writeUTF( MAGIC );
+        out.writeInt( VERSION );
+        out.writeUTF( indexName );
+        out.writeLong( storeId.getCreationTime() );
+        out.writeLong( storeId.getRandomId() );
+        out.writeLong( storeId.getStoreVersion() );
+        out.writeLong( storeId.getUpgradeTime() );
+        out.writeLong( storeId.getUpgradeId() );
+        out.writeLong( transactionId );
+        out.writeInt( config.size() );
+        for ( Map.Entry<String,String> entry : config.entrySet() )
+        {
+            out.writeUTF( entry.getKey() );
+            out.writeUTF( entry.getValue() );
+        }
+        Directory directory = commit.getDirectory();
+        out.writeInt( commit.getFileNames().size() );
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long bytes = 0;
+        for ( String name : commit.getFileNames() )
+        {
+            try ( IndexInput in = directory.openInput( name, IOContext.READONCE ) )
+            {
+                long length = in.length();
+                out.writeUTF( name );
+                out.writeLong( length );
+                CRC32 crc = new CRC32();
+                for ( long left = length; left > 0; )
+                {
+                    int chunk = (int) Math.min( buffer.length, left );
+                    in.readBytes( buffer, 0, chunk );
+                    crc.update( buffer, 0, chunk );
+                    out.write( buffer, 0, chunk );
+                    left -= chunk;
+                }
+                out.writeLong( crc.getValue() );
+                bytes += length;
+            }
+        }
+        out.writeLong( checked.getChecksum().getValue() );
+        out.flush();
+        return new IndexSnapshot( indexName, storeId, transactionId, config, commit.getFileNames().size(), bytes );
+    }
+
+    /**
+     * Replace the documents of the index named in the snapshot with the snapshot's, creating the index if needed.
+     * An existing index must have been created with the same analyzer.
+     */
+    public static IndexSnapshot load( GraphDatabaseService db, File source )
+    {
+        Path segments = null;
+        try
+        {
+            segments = Files.createTempDirectory( "fulltext-snapshot" );
+            IndexSnapshot snapshot = read( source, segments );
+            Map<String,String> imported = importable( snapshot.config );
+            Map<String,String> config;
+            try ( Transaction tx = db.beginTx() )
+            {
+                IndexManager mgr = db.index();
+                if ( mgr.existsForNodes( snapshot.index ) )
+                {
+                    Index<Node> index = mgr.forNodes( snapshot.index );
+                    Map<String,String> existing = mgr.getConfiguration( index );
+                    for ( String key : FIXED )
+                    {
+                        if ( !String.valueOf( existing.get( key ) ).equals( String.valueOf( imported.get( key ) ) ) )
+                        {
+                            throw new IllegalArgumentException( "Index `" + snapshot.index + "` has " + key + " `" +
+                                    existing.get( key ) + "`, the snapshot `" + imported.get( key ) + "`; remove the index first" );
+                        }
+                    }
+                    for ( Map.Entry<String,String> entry : imported.entrySet() )
+                    {
+                        if ( !isFixed( entry.getKey() ) && !entry.getValue().equals( existing.get( entry.getKey() ) ) )
+                        {
+                            mgr.setConfiguration( index, entry.getKey(), entry.getValue() );
+                        }
+                    }
+                    config = mgr.getConfiguration( index );
+                }
+                else
+                {
+                    config = mgr.getConfiguration( mgr.forNodes( snapshot.index, imported ) );
+                }
+                tx.success();
+            }
+            // Before anything is segmented for the changes since the snapshot; only this database's own dictionaries
+            IKDictionary.load( config );
+            Path copied = segments;
+            LuceneIndexes.withIndexExclusively( db, snapshot.index, ( writer, searcher ) -> {
+                writer.deleteAll();
+                try ( Directory directory = FSDirectory.open( copied ) )
+                {
+                    writer.addIndexes( directory );
+                }
+                writer.commit();
+                return null;
+            } );
+            LuceneIndexes.refresh( db, snapshot.index );
+            IndexRegistry.of( db ).invalidate( snapshot.index );
+            return snapshot;
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to import snapshot `" + source + "`", e );
+        }
+        finally
+        {
+            delete( segments );
+        }
+    }
+
+    /**
+     * Check and unpack a snapshot, the segment files going into the directory.
+     */
+    private static IndexSnapshot read( File source, Path segments ) throws IOException
+    {
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream( new FileInputStream( source ), BUFFER_SIZE ), new CRC32() );
+        try ( DataInputStream in = new DataInputStream( checked ) )
+        {
+            IndexSnapshot header = readHeader( in, source );
+            int files = in.readInt();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long bytes = 0;
+            for ( int i = 0; i < files; i++ )
+            {
+                String name = in.readUTF();
+                if ( name.contains( "/" ) || name.contains( "\\" ) || name.startsWith( "." ) )
+                {
+                    throw new IllegalArgumentException( "Invalid file `" + name + "` in snapshot `" + source + "`" );
+                }
+                long length = in.readLong();
+                CRC32 crc = new CRC32();
+                try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( segments.resolve( name ).toFile() ), BUFFER_SIZE ) )
+                {
+                    for ( long left = length; left > 0; )
+                    {
+                        int chunk = (int) Math.min( buffer.length, left );
+                        in.readFully( buffer, 0, chunk );
+                        crc.update( buffer, 0, chunk );
+                        out.write( buffer, 0, chunk );
+                        left -= chunk;
+                    }
+                }
+                if ( in.readLong() != crc.getValue() )
+                {
+                    throw new IllegalArgumentException( "Checksum mismatch for `" + name + "` in snapshot `" + source + "`" );
+                }
+                bytes += length;
+            }
+            long expected = checked.getChecksum().getValue();
+            if ( in.readLong() != expected || in.read() != -1 )
+            {
+                throw new IllegalArgumentException( "Snapshot `" + source + "` is corrupt or truncated" );
+            }
+            return new IndexSnapshot( header.index, header.storeId, header.transactionId, header.config, files, bytes );
+        }
+    }
+
+    /**
+     * @return the index, store, transaction and configuration of a snapshot, without reading its files
+     */
+    public static IndexSnapshot header( File source )
+    {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( source ) ) ) )
+        {
+            return readHeader( in, source );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to read snapshot `" + source + "`", e );
+        }
+    }
+
+    private static IndexSnapshot readHeader( DataInputStream in, File source ) throws IOException
+    {
+        if ( !MAGIC.equals( in.readUTF() ) || in.readInt() != VERSION )
+        {
+            throw new IllegalArgumentException( "Not a full-text index snapshot: `" + source + "`" );
+        }
+        String indexName = in.readUTF();
+        StoreId storeId = new StoreId( in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong() );
+        long transactionId = in.readLong();
+        Map<String,String> config = new LinkedHashMap<>();
+        for ( int i = in.readInt(); i > 0; i-- )
+        {
+            config.put( in.readUTF(), in.readUTF() );
+        }
+        return new IndexSnapshot( indexName, storeId, transactionId, config, 0, 0 );
+    }
+
+    /**
+     * Check that the changes since a snapshot can be read from this database's transaction log.
+     *
+     * @throws IllegalArgumentException if the snapshot was taken of another store, or of a later
+     *         state of this one than the database has reached
+     */
+    public static void checkImportable( GraphDatabaseService db, IndexSnapshot snapshot )
+    {
+        StoreId storeId = storeId( db );
+        if ( !storeId.equals( snapshot.storeId ) )
+        {
+            throw new IllegalArgumentException( "Snapshot of index `" + snapshot.index + "` was taken of store " + snapshot.storeId +
+                    ", not of this database's " + storeId + "; rebuild the index instead" );
+        }
+        long last = resolver( db ).resolveDependency( TransactionIdStore.class ).getLastClosedTransactionId();
+        if ( last < snapshot.transactionId )
+        {
+            throw new IllegalArgumentException( "Snapshot of index `" + snapshot.index + "` is at transaction " + snapshot.transactionId +
+                    ", this database only at " + last + "; rebuild the index instead" );
+        }
+    }
+
+    /**
+     * Drop the documents of nodes from an index, also of nodes that no longer exist.
+     */
+    public static void removeNodes( GraphDatabaseService db, String indexName, Collection<Long> nodeIds )
+    {
+        if ( nodeIds.isEmpty() )
+        {
+            return;
+        }
+        LuceneIndexes.withIndexExclusively( db, indexName, ( writer, searcher ) -> {
+            for ( long nodeId : nodeIds )
+            {
+                writer.deleteDocuments( new Term( DOC_ID, String.valueOf( nodeId ) ) );
+            }
+            writer.commit();
+            return null;
+        } );
+        LuceneIndexes.refresh( db, indexName );
+        IndexRegistry.of( db ).invalidate( indexName );
+    }
+
+    /**
+     * Collect the nodes created, deleted, relabelled or with changed properties after a transaction.
+     *
+     * @return the last transaction read
+     * @throws IllegalStateException if the transaction log no longer goes back that far, or the
+     *         database has not reached the transaction yet
+     */
+    public static long changedNodes( GraphDatabaseService db, long afterTransactionId, Set<Long> nodeIds )
+    {
+        DependencyResolver resolver = resolver( db );
+        long last = resolver.resolveDependency( TransactionIdStore.class ).getLastClosedTransactionId();
+        if ( afterTransactionId > last )
+        {
+            throw new IllegalStateException( "The database is at transaction " + last + ", before " + afterTransactionId );
+        }
+        if ( afterTransactionId == last )
+        {
+            return afterTransactionId;
+        }
+        try ( TransactionCursor transactions = resolver.resolveDependency( LogicalTransactionStore.class )
+                .getTransactions( afterTransactionId + 1 ) )
+        {
+            long read = afterTransactionId;
+            while ( read < last && transactions.next() )
+            {
+                CommittedTransactionRepresentation transaction = transactions.get();
+                transaction.accept( command -> {
+                    if ( command instanceof Command.NodeCommand )
+                    {
+                        Command.NodeCommand node = (Command.NodeCommand) command;
+                        if ( labelsOrExistenceChanged( node.getBefore(), node.getAfter() ) )
+                        {
+                            nodeIds.add( node.getKey() );
+                        }
+                    }
+                    else if ( command instanceof Command.PropertyCommand )
+                    {
+                        long nodeId = ((Command.PropertyCommand) command).getNodeId();
+                        if ( nodeId != -1 )
+                        {
+                            nodeIds.add( nodeId );
+                        }
+                    }
+                    return false;
+                } );
+                read = transaction.getCommitEntry().getTxId();
+            }
+            return read;
+        }
+        catch ( NoSuchTransactionException e )
+        {
+            throw new IllegalStateException( "The transaction log no longer has the transactions after " + afterTransactionId +
+                    ", rebuild the index instead", e );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to read the transaction log", e );
+        }
+    }
+
+    private static boolean labelsOrExistenceChanged( NodeRecord before, NodeRecord after )
+    {
+        // Relationship chain updates touch the node record too, they don't matter to an index
+        return before.inUse() != after.inUse() || before.getLabelField() != after.getLabelField() ||
+               !after.getDynamicLabelRecords().isEmpty();
+    }
+
+    /**
+     * The snapshot's configuration without the IK dictionary and stop word paths, which name files
+     * wherever the snapshot was exported and would be read from outside the snapshot directory.
+     */
+    private static Map<String,String> importable( Map<String,String> config )
+    {
+        Map<String,String> importable = new LinkedHashMap<>( config );
+        importable.keySet().removeIf( key -> key.startsWith( IKDictionary.PREFIX ) );
+        return importable;
+    }
+
+    private static boolean isFixed( String key )
+    {
+        for ( String fixed : FIXED )
+        {
+            if ( fixed.equals( key ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StoreId storeId( GraphDatabaseService db )
+    {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency( DataSourceManager.class ).getDataSource().getStoreId();
+    }
+
+    private static DependencyResolver resolver( GraphDatabaseService db )
+    {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency( DataSourceManager.class )
+                .getDataSource().getDependencyResolver();
+    }
+
+    private static void delete( Path directory )
+    {
+        if ( directory == null )
+        {
+            return;
+        }
+        try ( Stream<Path> files = Files.walk( directory ) )
+        {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+        catch ( IOException e )
+        {
+            // Only temporary files are left behind
+        }
+    }
+}
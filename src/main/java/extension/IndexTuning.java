@@ -0,0 +1,176 @@
+package extension;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.LogMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+
+/**
+ * Per-index Lucene writer settings: RAM buffer and merge policy.
+ *
+ * The settings are kept in the index configuration under {@code lucene.*}, and
+ * applied to the live index writer, which takes them without being reopened.
+ * Neo4j opens the writers itself with default settings, so they are applied
+ * again to every writer the index is first written through (see {@link IndexRegistry}). The
+ * storage directory is chosen by Neo4j for all indexes alike and can't be set
+ * per index.
+ */
+public class IndexTuning
+{
+    // Index configuration keys
+    public static final String RAM_BUFFER_MB = "lucene.ram_buffer_mb";
+    public static final String MERGE_POLICY = "lucene.merge_policy";
+    public static final String SEGMENTS_PER_TIER = "lucene.segments_per_tier";
+    public static final String MAX_MERGED_SEGMENT_MB = "lucene.max_merged_segment_mb";
+    public static final String MERGE_FACTOR = "lucene.merge_factor";
+
+    // Merge policies
+    public static final String TIERED = "tiered";
+    public static final String LOG_BYTE_SIZE = "log_byte_size";
+    public static final String LOG_DOC = "log_doc";
+
+    // Procedure config keys, in the naming of the other procedure options
+    private static final Map<String,String> OPTIONS = new HashMap<>();
+
+    static
+    {
+        OPTIONS.put( "ramBufferMB", RAM_BUFFER_MB );
+        OPTIONS.put( "mergePolicy", MERGE_POLICY );
+        OPTIONS.put( "segmentsPerTier", SEGMENTS_PER_TIER );
+        OPTIONS.put( "maxMergedSegmentMB", MAX_MERGED_SEGMENT_MB );
+        OPTIONS.put( "mergeFactor", MERGE_FACTOR );
+    }
+
+    private IndexTuning()
+    {
+    }
+
+    /**
+     * @return the tuning options among procedure config, as index configuration
+     */
+    public static Map<String,String> fromOptions( Map<String,Object> options )
+    {
+        Map<String,String> settings = new HashMap<>();
+        for ( Map.Entry<String,String> option : OPTIONS.entrySet() )
+        {
+            Object value = options.get( option.getKey() );
+            if ( value != null )
+            {
+                settings.put( option.getValue(), value.toString() );
+            }
+        }
+        mergePolicy( settings ); // Fail on bad settings before storing any of them
+        return settings;
+    }
+
+    /**
+     * Store the settings with an existing index and apply them. Needs a write transaction.
+     */
+    public static void configure( GraphDatabaseService db, String indexName, Map<String,String> settings )
+    {
+        if ( settings.isEmpty() )
+        {
+            return;
+        }
+        IndexManager mgr = db.index();
+        Index<Node> index = mgr.forNodes( indexName );
+        for ( Map.Entry<String,String> setting : settings.entrySet() )
+        {
+            mgr.setConfiguration( index, setting.getKey(), setting.getValue() );
+        }
+        IndexRegistry.of( db ).invalidate( indexName );
+        IndexRegistry.of( db ).prepareWrites( db, indexName );
+    }
+
+    /**
+     * @return the settings among an index configuration, empty if it has none
+     */
+    public static Map<String,String> settings( Map<String,String> config )
+    {
+        Map<String,String> settings = new HashMap<>();
+        for ( String key : OPTIONS.values() )
+        {
+            String value = config.get( key );
+            if ( value != null )
+            {
+                settings.put( key, value );
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Apply the settings in an index configuration to a writer.
+     */
+    public static void apply( IndexWriter writer, Map<String,String> config )
+    {
+        String ramBuffer = config.get( RAM_BUFFER_MB );
+        MergePolicy mergePolicy = mergePolicy( config );
+        LiveIndexWriterConfig writerConfig = writer.getConfig();
+        if ( ramBuffer != null )
+        {
+            writerConfig.setRAMBufferSizeMB( Double.parseDouble( ramBuffer ) );
+        }
+        if ( mergePolicy != null )
+        {
+            writerConfig.setMergePolicy( mergePolicy );
+        }
+    }
+
+    private static MergePolicy mergePolicy( Map<String,String> config )
+    {
+        String name = config.get( MERGE_POLICY );
+        String segmentsPerTier = config.get( SEGMENTS_PER_TIER );
+        String maxMergedSegment = config.get( MAX_MERGED_SEGMENT_MB );
+        String mergeFactor = config.get( MERGE_FACTOR );
+        if ( name == null )
+        {
+            if ( segmentsPerTier == null && maxMergedSegment == null && mergeFactor == null )
+            {
+                return null;
+            }
+            // Lucene's default
+            name = TIERED;
+        }
+        switch ( name )
+        {
+        case TIERED:
+            TieredMergePolicy tiered = new TieredMergePolicy();
+            if ( segmentsPerTier != null )
+            {
+                tiered.setSegmentsPerTier( Double.parseDouble( segmentsPerTier ) );
+            }
+            if ( maxMergedSegment != null )
+            {
+                tiered.setMaxMergedSegmentMB( Double.parseDouble( maxMergedSegment ) );
+            }
+            return tiered;
+        case LOG_BYTE_SIZE:
+            return withMergeFactor( new LogByteSizeMergePolicy(), mergeFactor );
+        case LOG_DOC:
+            return withMergeFactor( new LogDocMergePolicy(), mergeFactor );
+        default:
+            throw new IllegalArgumentException( "Unknown merge policy `" + name + "`, expected one of " +
+                    TIERED + ", " + LOG_BYTE_SIZE + ", " + LOG_DOC );
+        }
+    }
+
+    private static MergePolicy withMergeFactor( LogMergePolicy policy, String mergeFactor )
+    {
+        if ( mergeFactor != null )
+        {
+            policy.setMergeFactor( Integer.parseInt( mergeFactor ) );
+        }
+        return policy;
+    }
+}
@@ -0,0 +1,167 @@
+package extension;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.SmallFloat;
+
+/**
+ * Scores a (phrase) query by the length of the matching field alone: a match
+ * scores 1 / number of terms in the field, so the shorter the property the
+ * phrase was found in, the better the hit.
+ *
+ * The field lengths come from the norms Lucene stored at index time, so the
+ * whole ranking happens inside the index and no node has to be loaded to score
+ * it. The norms are stored lossily in one byte, so scores are approximate.
+ */
+public class LengthNormalizedQuery extends Query
+{
+    private static final TFIDFSimilarity LENGTH_ONLY = new LengthOnlySimilarity();
+
+    private final Query query;
+
+    public LengthNormalizedQuery( Query query )
+    {
+        this.query = query;
+    }
+
+    @Override
+    public Weight createWeight( IndexSearcher searcher, boolean needsScores ) throws IOException
+    {
+        IndexSearcher lengthScoring = new IndexSearcher( searcher.getIndexReader() );
+        lengthScoring.setSimilarity( LENGTH_ONLY );
+        lengthScoring.setQueryCache( null );
+        Weight weight = lengthScoring.createNormalizedWeight( query, needsScores );
+        return new Weight( this )
+        {
+            @Override
+            public void extractTerms( Set<Term> terms )
+            {
+                weight.extractTerms( terms );
+            }
+
+            @Override
+            public Explanation explain( LeafReaderContext context, int doc ) throws IOException
+            {
+                return weight.explain( context, doc );
+            }
+
+            @Override
+            public float getValueForNormalization()
+            {
+                // Already normalized above, keep the outer searcher from doing it again
+                return 1f;
+            }
+
+            @Override
+            public void normalize( float norm, float boost )
+            {
+            }
+
+            @Override
+            public Scorer scorer( LeafReaderContext context ) throws IOException
+            {
+                return weight.scorer( context );
+            }
+        };
+    }
+
+    @Override
+    public String toString( String field )
+    {
+        return "length(" + query.toString( field ) + ")";
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        return super.equals( o ) && query.equals( ((LengthNormalizedQuery) o).query );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * super.hashCode() + query.hashCode();
+    }
+
+    /**
+     * Every factor of the classic TF-IDF formula is 1, except the field length norm,
+     * which is decoded as 1 / length instead of 1 / sqrt(length).
+     */
+    private static class LengthOnlySimilarity extends TFIDFSimilarity
+    {
+        @Override
+        public float coord( int overlap, int maxOverlap )
+        {
+            return 1f;
+        }
+
+        @Override
+        public float queryNorm( float sumOfSquaredWeights )
+        {
+            return 1f;
+        }
+
+        @Override
+        public float tf( float freq )
+        {
+            return freq > 0 ? 1f : 0f;
+        }
+
+        @Override
+        public float idf( long docFreq, long numDocs )
+        {
+            return 1f;
+        }
+
+        @Override
+        public Explanation idfExplain( CollectionStatistics collectionStats, TermStatistics[] termStats )
+        {
+            // A phrase would otherwise sum the idf of its terms
+            return Explanation.match( 1f, "idf, constant" );
+        }
+
+        @Override
+        public float lengthNorm( org.apache.lucene.index.FieldInvertState state )
+        {
+            // Only used at index time, which is the classic 1 / sqrt(length)
+            return state.getBoost() / (float) Math.sqrt( state.getLength() - state.getNumOverlap() );
+        }
+
+        @Override
+        public long encodeNormValue( float f )
+        {
+            return SmallFloat.floatToByte315( f );
+        }
+
+        @Override
+        public float decodeNormValue( long norm )
+        {
+            // Stored as 1 / sqrt(length), the way the classic similarity encodes it
+            float inverseSqrtLength = SmallFloat.byte315ToFloat( (byte) norm );
+            return inverseSqrtLength * inverseSqrtLength;
+        }
+
+        @Override
+        public float sloppyFreq( int distance )
+        {
+            return 1f;
+        }
+
+        @Override
+        public float scorePayload( int doc, int start, int end, org.apache.lucene.util.BytesRef payload )
+        {
+            return 1f;
+        }
+    }
+}
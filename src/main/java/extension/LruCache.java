@@ -0,0 +1,91 @@
+package extension;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A small thread-safe cache that evicts the least recently used entries once full.
+ *
+ * Full means more than {@code maxSize} entries or, when entries are weighed, more
+ * than {@code maxWeight} in total; a single entry heavier than that is not kept.
+ */
+public class LruCache<K, V>
+{
+    private final Map<K,V> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private final int maxSize;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private long weight;
+
+    public LruCache( int maxSize )
+    {
+        this( maxSize, Long.MAX_VALUE, value -> 0 );
+    }
+
+    public LruCache( int maxSize, long maxWeight, ToLongFunction<V> weigher )
+    {
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get( K key )
+    {
+        return entries.get( key );
+    }
+
+    public synchronized void put( K key, V value )
+    {
+        long added = weigher.applyAsLong( value );
+        if ( added > maxWeight )
+        {
+            remove( key );
+            return;
+        }
+        V replaced = entries.put( key, value );
+        weight += added - (replaced == null ? 0 : weigher.applyAsLong( replaced ));
+        Iterator<V> eldest = entries.values().iterator();
+        while ( entries.size() > maxSize || weight > maxWeight )
+        {
+            weight -= weigher.applyAsLong( eldest.next() );
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Computes missing values outside the lock, so a slow computation doesn't block other readers.
+     */
+    public V computeIfAbsent( K key, Function<K,V> compute )
+    {
+        V value = get( key );
+        if ( value == null )
+        {
+            value = compute.apply( key );
+            put( key, value );
+        }
+        return value;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private void remove( K key )
+    {
+        V removed = entries.remove( key );
+        if ( removed != null )
+        {
+            weight -= weigher.applyAsLong( removed );
+        }
+    }
+}
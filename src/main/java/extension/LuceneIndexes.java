@@ -0,0 +1,198 @@
+package extension;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.NeoStoreDataSource;
+import org.neo4j.kernel.impl.index.IndexEntityType;
+import org.neo4j.kernel.impl.transaction.state.DataSourceManager;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * Direct access to the Lucene writer and searcher behind a legacy node index.
+ *
+ * Neo4j keeps them package-private inside its Lucene index provider, so they are
+ * reached by reflection: the provider registered as "lucene" with the data
+ * source, its {@code LuceneDataSource}, and the reference that data source hands
+ * out per index. Only for maintenance that the graph API has no words for; all
+ * data changes still go through {@code Index}.
+ */
+public class LuceneIndexes
+{
+    private static final String PROVIDER = "lucene";
+
+    private LuceneIndexes()
+    {
+    }
+
+    public interface IndexAction<T>
+    {
+        T apply( IndexWriter writer, IndexSearcher searcher ) throws IOException;
+    }
+
+    /**
+     * Run the action against the live writer and current searcher of a node index, opening it if needed.
+     */
+    public static <T> T withIndex( GraphDatabaseService db, String indexName, IndexAction<T> action )
+    {
+        Object dataSource = dataSource( db );
+        Object identifier = identifier( indexName );
+        Object reference = invoke( Internals.GET_INDEX_SEARCHER, dataSource, identifier );
+        try
+        {
+            IndexWriter writer = (IndexWriter) invoke( Internals.GET_WRITER, reference );
+            IndexSearcher searcher = (IndexSearcher) invoke( Internals.GET_SEARCHER, reference );
+            return action.apply( writer, searcher );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to access Lucene index `" + indexName + "`", e );
+        }
+        finally
+        {
+            invoke( Internals.CLOSE, reference );
+        }
+    }
+
+    /**
+     * Like {@link #withIndex}, holding the lock Neo4j applies committed transactions to its indexes under,
+     * so that no commit writes to the index while the action runs.
+     */
+    public static <T> T withIndexExclusively( GraphDatabaseService db, String indexName, IndexAction<T> action )
+    {
+        Object dataSource = dataSource( db );
+        invoke( Internals.GET_WRITE_LOCK, dataSource );
+        try
+        {
+            return withIndex( db, indexName, action );
+        }
+        finally
+        {
+            invoke( Internals.RELEASE_WRITE_LOCK, dataSource );
+        }
+    }
+
+    /**
+     * Make the next search of the index see everything its writer has done so far.
+     */
+    public static void refresh( GraphDatabaseService db, String indexName )
+    {
+        invoke( Internals.INVALIDATE_SEARCHER, dataSource( db ), identifier( indexName ) );
+    }
+
+    private static Object dataSource( GraphDatabaseService db )
+    {
+        NeoStoreDataSource neoStore = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency( DataSourceManager.class ).getDataSource();
+        try
+        {
+            Map<?,?> providers = (Map<?,?>) Internals.INDEX_PROVIDERS.get( neoStore );
+            Object provider = providers.get( PROVIDER );
+            if ( provider == null )
+            {
+                throw new IllegalStateException( "No Lucene legacy index provider registered" );
+            }
+            return Internals.DATA_SOURCE.get( provider );
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw new IllegalStateException( "Cannot reach the Lucene legacy index provider", e );
+        }
+    }
+
+    private static Object identifier( String indexName )
+    {
+        try
+        {
+            return Internals.IDENTIFIER.newInstance( IndexEntityType.Node, indexName );
+        }
+        catch ( InstantiationException | IllegalAccessException | InvocationTargetException e )
+        {
+            throw new IllegalStateException( "Cannot identify Lucene index `" + indexName + "`", e );
+        }
+    }
+
+    private static Object invoke( Method method, Object target, Object... args )
+    {
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw new IllegalStateException( "Cannot call " + method, e );
+        }
+        catch ( InvocationTargetException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException( cause );
+        }
+    }
+
+    /**
+     * The reflective handles, resolved once on first use.
+     */
+    private static class Internals
+    {
+        static final Field INDEX_PROVIDERS;
+        static final Field DATA_SOURCE;
+        static final Constructor<?> IDENTIFIER;
+        static final Method GET_INDEX_SEARCHER;
+        static final Method INVALIDATE_SEARCHER;
+        static final Method GET_WRITE_LOCK;
+        static final Method RELEASE_WRITE_LOCK;
+        static final Method GET_WRITER;
+        static final Method GET_SEARCHER;
+        static final Method CLOSE;
+
+        static
+        {
+            try
+            {
+                String legacy = "org.neo4j.index.impl.lucene.legacy.";
+                Class<?> identifier = Class.forName( legacy + "IndexIdentifier" );
+                Class<?> dataSource = Class.forName( legacy + "LuceneDataSource" );
+                Class<?> reference = Class.forName( legacy + "IndexReference" );
+
+                INDEX_PROVIDERS = accessible( NeoStoreDataSource.class.getDeclaredField( "indexProviders" ) );
+                DATA_SOURCE = accessible( Class.forName( legacy + "LuceneIndexImplementation" ).getDeclaredField( "dataSource" ) );
+                IDENTIFIER = identifier.getConstructor( IndexEntityType.class, String.class );
+                IDENTIFIER.setAccessible( true );
+                GET_INDEX_SEARCHER = accessible( dataSource.getDeclaredMethod( "getIndexSearcher", identifier ) );
+                INVALIDATE_SEARCHER = accessible( dataSource.getDeclaredMethod( "invalidateIndexSearcher", identifier ) );
+                GET_WRITE_LOCK = accessible( dataSource.getDeclaredMethod( "getWriteLock" ) );
+                RELEASE_WRITE_LOCK = accessible( dataSource.getDeclaredMethod( "releaseWriteLock" ) );
+                GET_WRITER = accessible( reference.getDeclaredMethod( "getWriter" ) );
+                GET_SEARCHER = accessible( reference.getDeclaredMethod( "getSearcher" ) );
+                CLOSE = accessible( reference.getDeclaredMethod( "close" ) );
+            }
+            catch ( ClassNotFoundException | NoSuchFieldException | NoSuchMethodException e )
+            {
+                throw new IllegalStateException( "Unsupported Neo4j Lucene index provider", e );
+            }
+        }
+
+        private static Field accessible( Field field )
+        {
+            field.setAccessible( true );
+            return field;
+        }
+
+        private static Method accessible( Method method )
+        {
+            method.setAccessible( true );
+            return method;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package extension;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+/**
+ * Builds Lucene queries over several properties straight from analyzed terms.
+ *
+ * No query syntax is involved, so there is nothing to parse and nothing in the
+ * user's input that needs escaping. Each property is analyzed with the index's
+ * analyzer under its own field name, and the per-property queries are combined
+ * either as a plain disjunction (scores add up) or, when the index configuration
+ * sets {@link #DISMAX_TIE_BREAKER}, as a {@link DisjunctionMaxQuery} (the best
+ * property wins). Properties mapped as keyword or numeric in the index's
+ * {@link FieldMappings} are matched on the whole value instead, and skipped
+ * properties not at all. A text ending in {@code *} matches the last of its
+ * terms as a prefix, like {@code Brook*} did in query syntax.
+ */
+public class MultiFieldQueryBuilder
+{
+    // Index configuration key, a float between 0 and 1
+    public static final String DISMAX_TIE_BREAKER = "query.dismax_tie_breaker";
+
+    private final Analyzer analyzer;
+    private final QueryBuilder builder;
+    private final Float tieBreaker;
+    private final FieldMappings mappings;
+
+    public MultiFieldQueryBuilder( Analyzer analyzer, Float tieBreaker )
+    {
+        this( analyzer, tieBreaker, FieldMappings.of( null ) );
+    }
+
+    public MultiFieldQueryBuilder( Analyzer analyzer, Float tieBreaker, FieldMappings mappings )
+    {
+        this.analyzer = analyzer;
+        this.builder = new QueryBuilder( analyzer );
+        this.tieBreaker = tieBreaker;
+        this.mappings = mappings;
+    }
+
+    public static MultiFieldQueryBuilder forIndex( Map<String,String> config )
+    {
+        return new MultiFieldQueryBuilder( Analyzers.forIndex( config ), tieBreaker( config ), FieldMappings.of( config ) );
+    }
+
+    private static Float tieBreaker( Map<String,String> config )
+    {
+        String value = config.get( DISMAX_TIE_BREAKER );
+        if ( value == null )
+        {
+            return null;
+        }
+        try
+        {
+            float tieBreaker = Float.parseFloat( value.trim() );
+            if ( tieBreaker >= 0 && tieBreaker <= 1 )
+            {
+                return tieBreaker;
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            // Reported below
+        }
+        throw new IllegalArgumentException( "Invalid " + DISMAX_TIE_BREAKER + " `" + value + "`, expected a number between 0 and 1" );
+    }
+
+    /**
+     * Nodes where one of the properties contains every term of the text.
+     */
+    public Query allTerms( List<String> fields, String text )
+    {
+        List<Query> perField = new ArrayList<>();
+        String trimmed = text.trim();
+        boolean prefix = trimmed.length() > 1 && trimmed.endsWith( "*" );
+        for ( String field : fields )
+        {
+            if ( isText( field ) )
+            {
+                add( perField, prefix ? withPrefix( field, trimmed.substring( 0, trimmed.length() - 1 ) )
+                                      : builder.createBooleanQuery( field, text, BooleanClause.Occur.MUST ) );
+            }
+            else
+            {
+                add( perField, mappings.exact( field, text ) );
+            }
+        }
+        return combine( perField );
+    }
+
+    /**
+     * Nodes where one of the properties contains the text as a phrase, scored by
+     * the length of the property it was found in, see {@link LengthNormalizedQuery}.
+     * The best property always wins here, a phrase found in two properties is no
+     * better a hit than one found in the shorter of them. Keyword and numeric
+     * properties have no length, their exact matches are added alongside.
+     */
+    public Query phrase( List<String> fields, String text )
+    {
+        List<Query> perField = new ArrayList<>();
+        List<Query> exact = new ArrayList<>();
+        for ( String field : fields )
+        {
+            if ( isText( field ) )
+            {
+                add( perField, builder.createPhraseQuery( field, text ) );
+            }
+            else
+            {
+                add( exact, mappings.exact( field, text ) );
+            }
+        }
+        if ( perField.isEmpty() )
+        {
+            return combine( exact );
+        }
+        Query best = perField.size() == 1 ? perField.get( 0 )
+                : new DisjunctionMaxQuery( perField, tieBreaker == null ? 0f : tieBreaker );
+        if ( exact.isEmpty() )
+        {
+            return new LengthNormalizedQuery( best );
+        }
+        exact.add( new LengthNormalizedQuery( best ) );
+        return combine( exact );
+    }
+
+    /**
+     * Every term of the text, the last one as a prefix.
+     */
+    private Query withPrefix( String field, String text )
+    {
+        List<String> terms = new ArrayList<>();
+        try ( TokenStream tokens = analyzer.tokenStream( field, text ) )
+        {
+            CharTermAttribute term = tokens.addAttribute( CharTermAttribute.class );
+            tokens.reset();
+            while ( tokens.incrementToken() )
+            {
+                terms.add( term.toString() );
+            }
+            tokens.end();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to analyze `" + text + "`", e );
+        }
+        if ( terms.isEmpty() )
+        {
+            return null;
+        }
+        BooleanQuery.Builder all = new BooleanQuery.Builder();
+        for ( int i = 0; i < terms.size() - 1; i++ )
+        {
+            all.add( new TermQuery( new Term( field, terms.get( i ) ) ), BooleanClause.Occur.MUST );
+        }
+        all.add( new PrefixQuery( new Term( field, terms.get( terms.size() - 1 ) ) ), BooleanClause.Occur.MUST );
+        return all.build();
+    }
+
+    private boolean isText( String field )
+    {
+        return FieldMappings.TEXT.equals( mappings.typeOf( field ) );
+    }
+
+    private static void add( List<Query> queries, Query query )
+    {
+        // Null when the text analyzes to no terms at all
+        if ( query != null )
+        {
+            queries.add( query );
+        }
+    }
+
+    private Query combine( List<Query> perField )
+    {
+        if ( perField.size() == 1 )
+        {
+            return perField.get( 0 );
+        }
+        if ( tieBreaker != null && !perField.isEmpty() )
+        {
+            return new DisjunctionMaxQuery( perField, tieBreaker );
+        }
+        BooleanQuery.Builder any = new BooleanQuery.Builder();
+        for ( Query query : perField )
+        {
+            any.add( query, BooleanClause.Occur.SHOULD );
+        }
+        return any.build();
+    }
+}
@@ -0,0 +1,89 @@
+package extension;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neo4j.kernel.api.LegacyIndexHits;
+import org.neo4j.kernel.api.Statement;
+
+/**
+ * The hits of a legacy index query as bare node ids and scores, read straight
+ * from the kernel.
+ *
+ * Going through {@code Index.query} looks every hit up as a {@code Node} first,
+ * which reads its record from the store. Callers that only join on ids never
+ * need that, and callers that do can still {@code MATCH} the node by id.
+ * The hits hold a kernel statement, which is released once they are exhausted
+ * or closed.
+ */
+public class NodeIdHits implements AutoCloseable
+{
+    private final Statement statement;
+    private final LegacyIndexHits hits;
+    private boolean closed;
+
+    NodeIdHits( Statement statement, LegacyIndexHits hits )
+    {
+        this.statement = statement;
+        this.hits = hits;
+    }
+
+    /**
+     * @param index the index name carried by every hit
+     */
+    public Stream<FullTextIndex.NodeIdAndScore> stream( String index )
+    {
+        Iterator<FullTextIndex.NodeIdAndScore> iterator = new Iterator<FullTextIndex.NodeIdAndScore>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                if ( closed )
+                {
+                    return false;
+                }
+                if ( hits.hasNext() )
+                {
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            public FullTextIndex.NodeIdAndScore next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                long nodeId = hits.next();
+                return new FullTextIndex.NodeIdAndScore( nodeId, hits.currentScore(), index );
+            }
+        };
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( iterator, Spliterator.ORDERED ), false )
+                .onClose( this::close );
+    }
+
+    @Override
+    public void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            hits.close();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+}
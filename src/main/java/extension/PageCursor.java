@@ -0,0 +1,75 @@
+package extension;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Where a page of search results ended: the score and node id of its last hit.
+ *
+ * Pages are sorted by score, best first, and ties by node id, so every hit has
+ * a fixed place in the order and the next page simply resumes after the last
+ * hit of the previous one (see {@link SearchAfterQuery}). The cursor is handed
+ * out as an opaque string. Pages stay consistent as long as the index does not
+ * change between calls.
+ */
+public class PageCursor
+{
+    // The legacy index keeps every document's entity id as doc values under this field
+    public static final String ID_FIELD = "_id_";
+
+    public static final Sort ORDER = new Sort( SortField.FIELD_SCORE, new SortField( ID_FIELD, SortField.Type.LONG ) );
+
+    private final float score;
+    private final long nodeId;
+
+    public PageCursor( float score, long nodeId )
+    {
+        this.score = score;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * @return the cursor, or {@code null} for the first page
+     * @throws IllegalArgumentException if it is not a cursor handed out by {@link #encode()}
+     */
+    public static PageCursor decode( String cursor )
+    {
+        if ( cursor == null || cursor.isEmpty() )
+        {
+            return null;
+        }
+        byte[] bytes;
+        try
+        {
+            bytes = Base64.getUrlDecoder().decode( cursor );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Invalid cursor: `" + cursor + "`", e );
+        }
+        if ( bytes.length != Float.BYTES + Long.BYTES )
+        {
+            throw new IllegalArgumentException( "Invalid cursor: `" + cursor + "`" );
+        }
+        ByteBuffer buffer = ByteBuffer.wrap( bytes );
+        return new PageCursor( buffer.getFloat(), buffer.getLong() );
+    }
+
+    public String encode()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( Float.BYTES + Long.BYTES ).putFloat( score ).putLong( nodeId );
+        return Base64.getUrlEncoder().withoutPadding().encodeToString( buffer.array() );
+    }
+
+    /**
+     * @return the query restricted to the hits after this cursor
+     */
+    public Query after( Query query )
+    {
+        return new SearchAfterQuery( query, score, nodeId );
+    }
+}
@@ -0,0 +1,294 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+
+/**
+ * Rebuilds the per-label indexes on a pool of worker threads.
+ *
+ * The caller's thread scans each label and cuts the node ids into consecutive
+ * ranges of {@code batchSize} nodes. Every range is a task that a worker indexes
+ * and commits in its own transaction. At most two tasks per worker are in
+ * flight, so memory stays bounded while the label scan runs ahead. The scan
+ * stops at the first task that failed, rather than queueing the rest of the
+ * labels behind it.
+ */
+public class ParallelIndexer implements AutoCloseable
+{
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final GraphDatabaseService db;
+    private final Map<String,String> config;
+    private final int batchSize;
+    private final BiFunction<Node,Index<Node>,Set<String>> nodeIndexer;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private final Map<String,Worker> workers = new ConcurrentHashMap<>();
+    private final Map<String,Set<String>> indexedKeys = new ConcurrentHashMap<>();
+    private Map<String,String> tuning = Collections.emptyMap();
+
+    public ParallelIndexer( GraphDatabaseService db, Map<String,String> config, int threads, int batchSize,
+                            BiFunction<Node,Index<Node>,Set<String>> nodeIndexer )
+    {
+        this.db = db;
+        this.config = config;
+        this.batchSize = batchSize > 0 ? batchSize : BatchIndexer.DEFAULT_BATCH_SIZE;
+        this.nodeIndexer = nodeIndexer;
+        int poolSize = threads > 0 ? threads : DEFAULT_THREADS;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool( poolSize, r -> {
+            Thread thread = new Thread( r, "chinese-fulltext-worker-" + counter.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        this.inFlight = new Semaphore( poolSize * 2 );
+    }
+
+    /**
+     * Lucene writer settings for the indexes, see {@link IndexTuning}.
+     */
+    public ParallelIndexer withTuning( Map<String,String> tuning )
+    {
+        this.tuning = tuning;
+        return this;
+    }
+
+    /**
+     * Index every node of the given labels, each label into the index named by {@code indexNames}.
+     */
+    public List<Worker> indexLabels( List<String> labels, List<String> indexNames )
+    {
+        // Create missing indexes up front, so workers don't race to create the same one
+        List<Boolean> existed = new ArrayList<>();
+        for ( String indexName : indexNames )
+        {
+            existed.add( db.index().existsForNodes( indexName ) );
+        }
+        await( executor.submit( () -> {
+            try ( Transaction tx = db.beginTx() )
+            {
+                for ( int i = 0; i < indexNames.size(); i++ )
+                {
+                    String indexName = indexNames.get( i );
+                    // An existing index keeps the configuration it was created with
+                    if ( !existed.get( i ) )
+                    {
+                        db.index().forNodes( indexName, config );
+                    }
+                    IndexTuning.configure( db, indexName, tuning );
+                }
+                tx.success();
+            }
+        } ) );
+
+        for ( int i = 0; i < labels.size(); i++ )
+        {
+            scan( labels.get( i ), indexNames.get( i ), existed.get( i ) );
+        }
+        for ( Future<?> future : pending )
+        {
+            await( future );
+        }
+        return new ArrayList<>( workers.values() );
+    }
+
+    private void scan( String label, String indexName, boolean removeExisting )
+    {
+        long[] range = new long[batchSize];
+        int count = 0;
+        try ( ResourceIterator<Node> nodes = db.findNodes( Label.label( label ) ) )
+        {
+            while ( nodes.hasNext() )
+            {
+                range[count++] = nodes.next().getId();
+                if ( count == batchSize )
+                {
+                    submit( label, indexName, removeExisting, range, count );
+                    range = new long[batchSize];
+                    count = 0;
+                }
+            }
+        }
+        if ( count > 0 )
+        {
+            submit( label, indexName, removeExisting, Arrays.copyOf( range, count ), count );
+        }
+    }
+
+    private void submit( String label, String indexName, boolean removeExisting, long[] ids, int count )
+    {
+        awaitDone();
+        try
+        {
+            inFlight.acquire();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while indexing label `" + label + "`", e );
+        }
+        // A task that failed while we waited for its permit
+        awaitDone();
+        pending.add( executor.submit( () -> {
+            try
+            {
+                indexRange( label, indexName, removeExisting, ids, count );
+            }
+            finally
+            {
+                inFlight.release();
+            }
+        } ) );
+    }
+
+    private void indexRange( String label, String indexName, boolean removeExisting, long[] ids, int count )
+    {
+        long start = System.nanoTime();
+        Set<String> keys = indexedKeys.computeIfAbsent( indexName, k -> ConcurrentHashMap.newKeySet() );
+        try ( Transaction tx = db.beginTx() )
+        {
+            // Created up front
+            Index<Node> index = db.index().forNodes( indexName );
+            for ( int i = 0; i < count; i++ )
+            {
+                Node node = db.getNodeById( ids[i] );
+                if ( removeExisting )
+                {
+                    index.remove( node );
+                }
+                keys.addAll( nodeIndexer.apply( node, index ) );
+            }
+            IndexRegistry.of( db ).invalidate( indexName );
+            tx.success();
+        }
+        long nanos = System.nanoTime() - start;
+        workers.computeIfAbsent( Thread.currentThread().getName(), Worker::new ).record( label, count, nanos );
+        IndexRegistry.of( db ).metrics().indexed( indexName, count, nanos );
+    }
+
+    /**
+     * @return index name -> keys of all properties written into it
+     */
+    public Map<String,Set<String>> indexedKeys()
+    {
+        return indexedKeys;
+    }
+
+    /**
+     * Drop the tasks that are done, and rethrow if one of them failed.
+     */
+    private void awaitDone()
+    {
+        for ( Iterator<Future<?>> futures = pending.iterator(); futures.hasNext(); )
+        {
+            Future<?> future = futures.next();
+            if ( future.isDone() )
+            {
+                futures.remove();
+                await( future );
+            }
+        }
+    }
+
+    private static void await( Future<?> future )
+    {
+        try
+        {
+            future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for index workers", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new RuntimeException( "Index worker failed", e.getCause() );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * What a single worker thread did, updated by that thread after every task.
+     */
+    public static class Worker
+    {
+        private final String name;
+        private final List<String> labels = new ArrayList<>();
+        private long tasks;
+        private long nodes;
+        private long busyNanos;
+
+        Worker( String name )
+        {
+            this.name = name;
+        }
+
+        synchronized void record( String label, int count, long nanos )
+        {
+            if ( !labels.contains( label ) )
+            {
+                labels.add( label );
+            }
+            tasks++;
+            nodes += count;
+            busyNanos += nanos;
+        }
+
+        public String name()
+        {
+            return name;
+        }
+
+        public synchronized List<String> labels()
+        {
+            return new ArrayList<>( labels );
+        }
+
+        public synchronized long tasks()
+        {
+            return tasks;
+        }
+
+        public synchronized long nodes()
+        {
+            return nodes;
+        }
+
+        public synchronized long busyMillis()
+        {
+            return busyNanos / 1_000_000;
+        }
+
+        public synchronized double nodesPerSecond()
+        {
+            return busyNanos == 0 ? 0 : nodes * 1_000_000_000.0 / busyNanos;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package extension;
+
+/**
+ * The names the procedures are registered under, shared by their {@code @Procedure}
+ * annotations and the statistics they are recorded under.
+ */
+public final class ProcedureNames
+{
+    // example.*
+    public static final String SEARCH = "example.search";
+    public static final String INDEX = "example.index";
+
+    // userdefined.index.*
+    public static final String CHINESE_FULL_INDEX_SEARCH = "userdefined.index.ChineseFullIndexSearch";
+    public static final String ADD_CHINESE_FULL_TEXT_INDEX = "userdefined.index.addChineseFullTextIndex";
+
+    // chineseFulltextIndex.*
+    public static final String SEARCH_CHINESE_PAGE = "chineseFulltextIndex.searchChinesePage";
+    public static final String QUERY_BY_VALUE = "chineseFulltextIndex.queryByValue";
+    public static final String QUERY_BY_VALUE_WITH_SCORE_AND_LIMIT = "chineseFulltextIndex.queryByValueWithScoreAndLimit";
+    public static final String QUERY_BY_VALUE_CONCURRENT = "chineseFulltextIndex.queryByValueConcurrent";
+    public static final String QUERY_BY_LABEL = "chineseFulltextIndex.queryByLabel";
+    public static final String QUERY_BY_LABEL_WITH_SCORE_AND_LIMIT = "chineseFulltextIndex.queryByLabelWithScoreAndLimit";
+    public static final String QUERY_BY_PROPERTY = "chineseFulltextIndex.queryByProperty";
+    public static final String QUERY_BY_PROPERTY_WITH_SCORE = "chineseFulltextIndex.queryByPropertyWithScore";
+    public static final String QUERY_BY_PROPERTY_PAGE = "chineseFulltextIndex.queryByPropertyPage";
+    public static final String QUERY_BY_PROPERTY_IN_RANGE = "chineseFulltextIndex.queryByPropertyInRange";
+    public static final String SUGGEST = "chineseFulltextIndex.suggest";
+    public static final String QUERY_IDS_BY_PROPERTY = "chineseFulltextIndex.queryIdsByProperty";
+    public static final String QUERY_IDS_BY_LABEL = "chineseFulltextIndex.queryIdsByLabel";
+    public static final String QUERY_IDS_BY_VALUE = "chineseFulltextIndex.queryIdsByValue";
+    public static final String ADD_NODES_INDEX_BY_LABELS = "chineseFulltextIndex.addNodesIndexByLabels";
+    public static final String ADD_NODES_INDEX = "chineseFulltextIndex.addNodesIndex";
+    public static final String ADD_NODES_INDEX_BY_PROPERTIES = "chineseFulltextIndex.addNodesIndexByProperties";
+    public static final String ADD_NODES_INDEX_BY_LABEL = "chineseFulltextIndex.addNodesIndexByLabel";
+    public static final String SUBMIT_INDEX_JOB = "chineseFulltextIndex.submitIndexJob";
+    public static final String INDEX_JOB_STATUS = "chineseFulltextIndex.indexJobStatus";
+    public static final String CANCEL_INDEX_JOB = "chineseFulltextIndex.cancelIndexJob";
+    public static final String RESUME_INDEX_JOB = "chineseFulltextIndex.resumeIndexJob";
+    public static final String THROTTLE_INDEX_JOB = "chineseFulltextIndex.throttleIndexJob";
+    public static final String BULK_INDEX_BY_LABEL = "chineseFulltextIndex.bulkIndexByLabel";
+    public static final String ADD_GLOBAL_INDEX = "chineseFulltextIndex.addGlobalIndex";
+    public static final String PARALLEL_INDEX_BY_LABELS = "chineseFulltextIndex.parallelIndexByLabels";
+    public static final String TUNE = "chineseFulltextIndex.tune";
+    public static final String MAP_FIELDS = "chineseFulltextIndex.mapFields";
+    public static final String OPTIMIZE = "chineseFulltextIndex.optimize";
+    public static final String EXPORT_INDEX = "chineseFulltextIndex.exportIndex";
+    public static final String IMPORT_INDEX = "chineseFulltextIndex.importIndex";
+    public static final String RELOAD_DICTIONARY = "chineseFulltextIndex.reloadDictionary";
+    public static final String STATS = "chineseFulltextIndex.stats";
+    public static final String SLOW_QUERY_LOG = "chineseFulltextIndex.slowQueryLog";
+    public static final String AUTO_UPDATE = "chineseFulltextIndex.autoUpdate";
+    public static final String REMOVE_INDEX = "chineseFulltextIndex.removeIndex";
+    public static final String REMOVE_INDEX_BY_LABEL = "chineseFulltextIndex.removeIndexByLabel";
+
+    private ProcedureNames()
+    {
+    }
+}
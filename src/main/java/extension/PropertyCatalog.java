@@ -0,0 +1,117 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+
+/**
+ * The property keys that have been indexed into an index, kept in the index configuration.
+ *
+ * Every procedure that indexes nodes records the keys it wrote, so queries know
+ * which fields to search from the (cached) configuration alone, instead of
+ * sampling a node from the store on every call.
+ */
+public class PropertyCatalog
+{
+    // Index configuration key, the indexed property keys joined by commas
+    public static final String PROPERTY_KEYS = "property_keys";
+
+    // Serializes recording per index
+    private static final ConcurrentMap<String,Object> LOCKS = new ConcurrentHashMap<>();
+
+    private PropertyCatalog()
+    {
+    }
+
+    /**
+     * @return the indexed property keys of the index, empty if there is no such index
+     */
+    public static List<String> keys( GraphDatabaseService db, String indexName )
+    {
+        Map<String,String> config = IndexRegistry.of( db ).configuration( db, indexName );
+        if ( config == null )
+        {
+            return new ArrayList<>();
+        }
+        String keys = config.get( PROPERTY_KEYS );
+        if ( keys != null )
+        {
+            return split( keys );
+        }
+        return sample( db, indexName );
+    }
+
+    /**
+     * Add keys to the catalog of an index. Needs a write transaction; does nothing if they are all known.
+     *
+     * Index configuration is written right away rather than on commit, so concurrent
+     * transactions would each merge into what they read and lose the other's keys;
+     * the read-merge-write is serialized per index instead. Keys only ever get added,
+     * so the cached configuration already listing them is enough to skip the lock.
+     */
+    public static void record( GraphDatabaseService db, String indexName, Collection<String> keys )
+    {
+        if ( keys.isEmpty() )
+        {
+            return;
+        }
+        Map<String,String> cached = IndexRegistry.of( db ).configuration( db, indexName );
+        if ( cached == null || split( cached.get( PROPERTY_KEYS ) ).containsAll( keys ) )
+        {
+            return;
+        }
+        synchronized ( LOCKS.computeIfAbsent( indexName, name -> new Object() ) )
+        {
+            IndexManager mgr = db.index();
+            if ( !mgr.existsForNodes( indexName ) )
+            {
+                return;
+            }
+            Index<Node> index = mgr.forNodes( indexName );
+            Set<String> merged = new LinkedHashSet<>( split( mgr.getConfiguration( index ).get( PROPERTY_KEYS ) ) );
+            if ( merged.addAll( keys ) )
+            {
+                mgr.setConfiguration( index, PROPERTY_KEYS, String.join( ",", merged ) );
+                IndexRegistry.of( db ).invalidate( indexName );
+            }
+        }
+    }
+
+    private static List<String> split( String keys )
+    {
+        return keys == null || keys.isEmpty() ? new ArrayList<>() : new ArrayList<>( Arrays.asList( keys.split( "," ) ) );
+    }
+
+    /**
+     * Indexes built before the catalog existed: fall back to the keys of the first
+     * node with the label of the same name.
+     */
+    private static List<String> sample( GraphDatabaseService db, String label )
+    {
+        List<String> keys = new ArrayList<>();
+        try ( ResourceIterator<Node> nodes = db.findNodes( Label.label( label ) ) )
+        {
+            if ( nodes.hasNext() )
+            {
+                for ( String propKey : nodes.next().getPropertyKeys() )
+                {
+                    keys.add( propKey );
+                }
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,484 @@
+package extension;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neo4j.logging.Log;
+
+/**
+ * Latency and hit statistics of the full-text procedures, one set per database.
+ *
+ * Every procedure call is a {@link Call}, which ends when its result stream has
+ * been read to the end or closed, since the procedures stream lazily. While it
+ * runs, the query code reports time spent building the query (analysis), in
+ * Lucene, and looking nodes up (materialization), and how many hits Lucene
+ * found (scanned) against how many rows came back (returned). Calls slower than
+ * the slow query threshold are logged with the query and the Lucene query they
+ * ran. The same figures are exposed over JMX, see {@link QueryMetricsMXBean}.
+ */
+public class QueryMetrics implements QueryMetricsMXBean
+{
+    // System property with the initial slow query threshold in milliseconds, negative for off
+    public static final String SLOW_QUERY_MILLIS = "chinese.fulltext.slow_query_ms";
+
+    private static final int MAX_LOGGED_LENGTH = 1000;
+    private static final ThreadLocal<Call> CURRENT = new ThreadLocal<>();
+    private static final Call NONE = new Call( null, null, "", null );
+
+    private final Map<String,Stats> procedures = new ConcurrentHashMap<>();
+    private final Map<String,Stats> indexes = new ConcurrentHashMap<>();
+    private final Map<String,Indexing> indexing = new ConcurrentHashMap<>();
+    private final LongAdder slowQueries = new LongAdder();
+    private volatile long slowQueryMillis = Long.getLong( SLOW_QUERY_MILLIS, -1 );
+
+    /**
+     * Start timing a procedure call.
+     *
+     * @param query the user's query, for the slow query log, or {@code null}
+     */
+    public Call start( String procedure, Object query, Log log )
+    {
+        return new Call( this, procedure, query == null ? "" : normalize( query.toString() ), log );
+    }
+
+    /**
+     * @return the call running on this thread, or one that records nothing
+     */
+    public static Call current()
+    {
+        Call call = CURRENT.get();
+        return call == null ? NONE : call;
+    }
+
+    /**
+     * Record nodes written into an index.
+     */
+    public void indexed( String index, long nodes, long nanos )
+    {
+        indexing.computeIfAbsent( index, k -> new Indexing() ).record( nodes, nanos );
+    }
+
+    public Map<String,Stats> procedures()
+    {
+        return new TreeMap<>( procedures );
+    }
+
+    public Map<String,Stats> indexes()
+    {
+        return new TreeMap<>( indexes );
+    }
+
+    public Map<String,Indexing> indexing()
+    {
+        return new TreeMap<>( indexing );
+    }
+
+    @Override
+    public long getSlowQueries()
+    {
+        return slowQueries.sum();
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis()
+    {
+        return slowQueryMillis;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis( long millis )
+    {
+        slowQueryMillis = millis;
+    }
+
+    @Override
+    public Map<String,Long> getCallsByProcedure()
+    {
+        Map<String,Long> calls = new TreeMap<>();
+        procedures.forEach( ( name, stats ) -> calls.put( name, stats.calls() ) );
+        return calls;
+    }
+
+    @Override
+    public Map<String,Double> getP99MillisByProcedure()
+    {
+        Map<String,Double> p99 = new TreeMap<>();
+        procedures.forEach( ( name, stats ) -> p99.put( name, stats.percentileMillis( 0.99 ) ) );
+        return p99;
+    }
+
+    @Override
+    public Map<String,Double> getP99MillisByIndex()
+    {
+        Map<String,Double> p99 = new TreeMap<>();
+        indexes.forEach( ( name, stats ) -> p99.put( name, stats.percentileMillis( 0.99 ) ) );
+        return p99;
+    }
+
+    @Override
+    public Map<String,Double> getNodesPerSecondByIndex()
+    {
+        Map<String,Double> rates = new TreeMap<>();
+        indexing.forEach( ( name, rate ) -> rates.put( name, rate.nodesPerSecond() ) );
+        return rates;
+    }
+
+    @Override
+    public void reset()
+    {
+        procedures.clear();
+        indexes.clear();
+        indexing.clear();
+        slowQueries.reset();
+    }
+
+    private static String normalize( String query )
+    {
+        String normalized = query.trim().replaceAll( "\\s+", " " );
+        return normalized.length() > MAX_LOGGED_LENGTH ? normalized.substring( 0, MAX_LOGGED_LENGTH ) + "..." : normalized;
+    }
+
+    /**
+     * One procedure call. Reporting methods may be called from worker threads.
+     */
+    public static class Call
+    {
+        private final QueryMetrics metrics;
+        private final String procedure;
+        private final String query;
+        private final Log log;
+        private final long started = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final LongAdder analyzeNanos = new LongAdder();
+        private final LongAdder luceneNanos = new LongAdder();
+        private final LongAdder materializeNanos = new LongAdder();
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder returned = new LongAdder();
+        // Lucene time and query per index searched
+        private final Map<String,Long> searchNanos = new ConcurrentHashMap<>();
+        private final Map<String,String> plans = new ConcurrentHashMap<>();
+
+        private Call( QueryMetrics metrics, String procedure, String query, Log log )
+        {
+            this.metrics = metrics;
+            this.procedure = procedure;
+            this.query = query;
+            this.log = log;
+        }
+
+        /**
+         * Run the procedure body as this call, and time the stream it returns until it is exhausted or closed.
+         */
+        public <T> Stream<T> track( Supplier<Stream<T>> body )
+        {
+            Stream<T> rows;
+            // A procedure may call another one
+            Call outer = CURRENT.get();
+            CURRENT.set( this );
+            try
+            {
+                rows = body.get();
+            }
+            catch ( RuntimeException | Error e )
+            {
+                finish( true );
+                throw e;
+            }
+            finally
+            {
+                CURRENT.set( outer );
+            }
+            Iterator<T> iterator = rows.iterator();
+            Iterator<T> counted = new Iterator<T>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    boolean hasNext = iterator.hasNext();
+                    if ( !hasNext )
+                    {
+                        finish( false );
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public T next()
+                {
+                    returned.increment();
+                    return iterator.next();
+                }
+            };
+            return StreamSupport.stream( Spliterators.spliteratorUnknownSize( counted, 0 ), false )
+                    .onClose( rows::close )
+                    .onClose( () -> finish( false ) );
+        }
+
+        /**
+         * Run a procedure that returns nothing as this call.
+         */
+        public void run( Runnable body )
+        {
+            track( () -> {
+                body.run();
+                return Stream.empty();
+            } ).close();
+        }
+
+        public void analyzed( long nanos )
+        {
+            analyzeNanos.add( nanos );
+        }
+
+        /**
+         * Time spent in Lucene on one index, running the given query.
+         */
+        public void searched( String index, Object query, long nanos )
+        {
+            if ( metrics == null )
+            {
+                return;
+            }
+            luceneNanos.add( nanos );
+            searchNanos.merge( index, nanos, Long::sum );
+            if ( query != null )
+            {
+                plans.putIfAbsent( index, normalize( query.toString() ) );
+            }
+        }
+
+        public void scanned( long hits )
+        {
+            scanned.add( hits );
+        }
+
+        public void materialized( long nanos )
+        {
+            materializeNanos.add( nanos );
+        }
+
+        private void finish( boolean failed )
+        {
+            if ( metrics == null || !finished.compareAndSet( false, true ) )
+            {
+                return;
+            }
+            long nanos = System.nanoTime() - started;
+            metrics.procedures.computeIfAbsent( procedure, k -> new Stats() )
+                    .record( nanos, failed, scanned.sum(), returned.sum(), analyzeNanos.sum(), luceneNanos.sum(), materializeNanos.sum() );
+            searchNanos.forEach( ( name, indexNanos ) -> metrics.indexes.computeIfAbsent( name, k -> new Stats() )
+                    .record( indexNanos, failed, 0, 0, 0, indexNanos, 0 ) );
+
+            long threshold = metrics.slowQueryMillis;
+            if ( threshold >= 0 && nanos >= threshold * 1_000_000 )
+            {
+                metrics.slowQueries.increment();
+                if ( log != null )
+                {
+                    log.warn( "Slow full-text query: %s took %dms (analysis %dms, lucene %dms, materialization %dms), " +
+                              "%d hits scanned, %d returned, query `%s`, plan %s",
+                            procedure, nanos / 1_000_000, analyzeNanos.sum() / 1_000_000, luceneNanos.sum() / 1_000_000,
+                            materializeNanos.sum() / 1_000_000, scanned.sum(), returned.sum(), query, new TreeMap<>( plans ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Latency histogram and totals of the calls of one procedure, or the searches of one index.
+     */
+    public static class Stats
+    {
+        private final Histogram latency = new Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder returned = new LongAdder();
+        private final LongAdder analyzeNanos = new LongAdder();
+        private final LongAdder luceneNanos = new LongAdder();
+        private final LongAdder materializeNanos = new LongAdder();
+
+        void record( long nanos, boolean failed, long scanned, long returned, long analyzeNanos, long luceneNanos, long materializeNanos )
+        {
+            latency.record( nanos );
+            if ( failed )
+            {
+                errors.increment();
+            }
+            this.scanned.add( scanned );
+            this.returned.add( returned );
+            this.analyzeNanos.add( analyzeNanos );
+            this.luceneNanos.add( luceneNanos );
+            this.materializeNanos.add( materializeNanos );
+        }
+
+        public long calls()
+        {
+            return latency.count();
+        }
+
+        public long errors()
+        {
+            return errors.sum();
+        }
+
+        public double meanMillis()
+        {
+            long calls = calls();
+            return calls == 0 ? 0 : latency.total() / 1e6 / calls;
+        }
+
+        public double percentileMillis( double percentile )
+        {
+            return latency.percentile( percentile ) / 1e6;
+        }
+
+        public double maxMillis()
+        {
+            return latency.max() / 1e6;
+        }
+
+        public long scanned()
+        {
+            return scanned.sum();
+        }
+
+        public long returned()
+        {
+            return returned.sum();
+        }
+
+        public double analyzeMillis()
+        {
+            return analyzeNanos.sum() / 1e6;
+        }
+
+        public double luceneMillis()
+        {
+            return luceneNanos.sum() / 1e6;
+        }
+
+        public double materializeMillis()
+        {
+            return materializeNanos.sum() / 1e6;
+        }
+    }
+
+    /**
+     * Nodes written into one index and the time it took.
+     */
+    public static class Indexing
+    {
+        private final LongAdder nodes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record( long nodes, long nanos )
+        {
+            this.nodes.add( nodes );
+            this.nanos.add( nanos );
+        }
+
+        public long nodes()
+        {
+            return nodes.sum();
+        }
+
+        public double nodesPerSecond()
+        {
+            long nanos = this.nanos.sum();
+            return nanos == 0 ? 0 : nodes.sum() * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * A lock-free log-linear histogram of nanosecond values: four buckets per power of two,
+     * so percentiles are accurate to within about a fifth.
+     */
+    static class Histogram
+    {
+        private static final int SUB_BUCKETS = 4;
+        private final AtomicLongArray buckets = new AtomicLongArray( 64 * SUB_BUCKETS );
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+        void record( long value )
+        {
+            value = Math.max( 1, value );
+            buckets.incrementAndGet( bucket( value ) );
+            count.increment();
+            total.add( value );
+            max.accumulate( value );
+        }
+
+        long count()
+        {
+            return count.sum();
+        }
+
+        long total()
+        {
+            return total.sum();
+        }
+
+        long max()
+        {
+            return max.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, at most the maximum recorded
+         */
+        long percentile( double percentile )
+        {
+            long count = count();
+            if ( count == 0 )
+            {
+                return 0;
+            }
+            long rank = (long) Math.ceil( percentile * count );
+            long seen = 0;
+            for ( int i = 0; i < buckets.length(); i++ )
+            {
+                seen += buckets.get( i );
+                if ( seen >= rank )
+                {
+                    return Math.min( upperBound( i ), max() );
+                }
+            }
+            return max();
+        }
+
+        private static int bucket( long value )
+        {
+            int power = 63 - Long.numberOfLeadingZeros( value );
+            if ( power < 2 )
+            {
+                return (int) value;
+            }
+            // The two bits after the leading one pick the sub-bucket
+            int sub = (int) (value >>> (power - 2)) & (SUB_BUCKETS - 1);
+            return power * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound( int bucket )
+        {
+            int power = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+            if ( power < 2 )
+            {
+                return bucket;
+            }
+            return (1L << power) + ((sub + 1L) << (power - 2)) - 1;
+        }
+    }
+}
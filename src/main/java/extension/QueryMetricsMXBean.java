@@ -0,0 +1,29 @@
+package extension;
+
+import java.util.Map;
+
+/**
+ * The full-text procedure statistics over JMX, registered by {@link IndexMaintenanceExtensionFactory}.
+ * {@code chineseFulltextIndex.stats()} has the full breakdown.
+ */
+public interface QueryMetricsMXBean
+{
+    long getSlowQueries();
+
+    long getSlowQueryThresholdMillis();
+
+    /**
+     * @param millis calls taking at least this long are logged, negative turns the log off
+     */
+    void setSlowQueryThresholdMillis( long millis );
+
+    Map<String,Long> getCallsByProcedure();
+
+    Map<String,Double> getP99MillisByProcedure();
+
+    Map<String,Double> getP99MillisByIndex();
+
+    Map<String,Double> getNodesPerSecondByIndex();
+
+    void reset();
+}
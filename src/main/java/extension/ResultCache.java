@@ -0,0 +1,240 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+
+/**
+ * Recent search results as node ids and scores, bounded in number, total hits and age.
+ *
+ * A result is keyed on the indexes it searched, the normalized query, the score
+ * threshold and the limit, and remembers the Lucene reader version and the
+ * generation each of its indexes had before the search ran. It is only served
+ * while all of them are unchanged: the version moves with every commit that
+ * reaches an index, whoever wrote it, and the generation with every
+ * {@link IndexRegistry#invalidate(String)}, which also covers an index deleted
+ * and created anew, whose version starts over.
+ */
+public class ResultCache
+{
+    public static final int MAX_ENTRIES = 10_000;
+    // About 20 bytes each, whatever the number of entries they are spread over
+    public static final long MAX_CACHED_HITS = 1_000_000;
+    public static final long TTL_MILLIS = 60_000;
+    // Bigger results cost more memory than they save time
+    public static final int MAX_HITS = 10_000;
+
+    private final IndexRegistry registry;
+    private final LruCache<Key,Entry> entries = new LruCache<>( MAX_ENTRIES, MAX_CACHED_HITS, entry -> entry.hits.size() );
+
+    ResultCache( IndexRegistry registry )
+    {
+        this.registry = registry;
+    }
+
+    /**
+     * Snapshot the versions and generations of the indexes, before searching them.
+     *
+     * @param kind what the query string is, e.g. a value or Lucene query syntax
+     */
+    public Key key( GraphDatabaseService db, String kind, Collection<String> indexes, String query, double score, long limit )
+    {
+        List<String> sorted = new ArrayList<>( new TreeSet<>( indexes ) );
+        return new Key( kind, sorted, query.trim().replaceAll( "\\s+", " " ), score, limit, state( db, sorted ) );
+    }
+
+    /**
+     * @return the cached hits, or {@code null} if there are none still valid
+     */
+    public Hits get( GraphDatabaseService db, Key key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry == null || entry.expires < System.currentTimeMillis() )
+        {
+            return null;
+        }
+        return Arrays.equals( entry.state, state( db, key.indexes ) ) ? entry.hits : null;
+    }
+
+    /**
+     * Cache hits found with the key, unless one of its indexes changed or is being written to meanwhile,
+     * in which case the hits may include uncommitted or outdated entries.
+     */
+    public void put( GraphDatabaseService db, Key key, Hits hits )
+    {
+        if ( hits.size() > MAX_HITS )
+        {
+            return;
+        }
+        for ( String index : key.indexes )
+        {
+            if ( registry.isWriting( index ) )
+            {
+                return;
+            }
+        }
+        if ( Arrays.equals( key.state, state( db, key.indexes ) ) )
+        {
+            entries.put( key, new Entry( key.state, System.currentTimeMillis() + TTL_MILLIS, hits ) );
+        }
+    }
+
+    // The version and generation of every index, in turn
+    private long[] state( GraphDatabaseService db, List<String> indexes )
+    {
+        long[] state = new long[indexes.size() * 2];
+        for ( int i = 0; i < indexes.size(); i++ )
+        {
+            state[i * 2] = registry.version( db, indexes.get( i ) );
+            state[i * 2 + 1] = registry.generation( indexes.get( i ) );
+        }
+        return state;
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public static class Key
+    {
+        private final String kind;
+        private final List<String> indexes;
+        private final String query;
+        private final double score;
+        private final long limit;
+        // Not part of the identity, a cached entry is checked against it instead
+        private final long[] state;
+
+        private Key( String kind, List<String> indexes, String query, double score, long limit, long[] state )
+        {
+            this.kind = kind;
+            this.indexes = indexes;
+            this.query = query;
+            this.score = score;
+            this.limit = limit;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o )
+            {
+                return true;
+            }
+            if ( !(o instanceof Key) )
+            {
+                return false;
+            }
+            Key that = (Key) o;
+            return kind.equals( that.kind ) && indexes.equals( that.indexes ) && query.equals( that.query )
+                    && Double.compare( score, that.score ) == 0 && limit == that.limit;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = kind.hashCode();
+            result = 31 * result + indexes.hashCode();
+            result = 31 * result + query.hashCode();
+            result = 31 * result + Double.hashCode( score );
+            return 31 * result + Long.hashCode( limit );
+        }
+    }
+
+    private static class Entry
+    {
+        final long[] state;
+        final long expires;
+        final Hits hits;
+
+        Entry( long[] state, long expires, Hits hits )
+        {
+            this.state = state;
+            this.expires = expires;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Hits in their original order, held as primitives.
+     */
+    public static class Hits
+    {
+        private final long[] nodeIds;
+        private final double[] scores;
+        private final String[] indexes;
+
+        private Hits( long[] nodeIds, double[] scores, String[] indexes )
+        {
+            this.nodeIds = nodeIds;
+            this.scores = scores;
+            this.indexes = indexes;
+        }
+
+        public static Hits of( List<FullTextIndex.NodeIdAndScore> hits )
+        {
+            long[] nodeIds = new long[hits.size()];
+            double[] scores = new double[hits.size()];
+            String[] indexes = new String[hits.size()];
+            for ( int i = 0; i < nodeIds.length; i++ )
+            {
+                FullTextIndex.NodeIdAndScore hit = hits.get( i );
+                nodeIds[i] = hit.nodeId;
+                scores[i] = hit.score;
+                indexes[i] = hit.index;
+            }
+            return new Hits( nodeIds, scores, indexes );
+        }
+
+        public int size()
+        {
+            return nodeIds.length;
+        }
+
+        public Stream<FullTextIndex.NodeIdAndScore> ids()
+        {
+            return IntStream.range( 0, nodeIds.length )
+                    .mapToObj( i -> new FullTextIndex.NodeIdAndScore( nodeIds[i], scores[i], indexes[i] ) );
+        }
+
+        /**
+         * @return the hits as nodes, leaving out nodes deleted without updating the index
+         */
+        public Stream<FullTextIndex.NodeAndScore> nodes( GraphDatabaseService db )
+        {
+            // Looked up as the rows are read, after the procedure has returned
+            QueryMetrics.Call call = QueryMetrics.current();
+            return IntStream.range( 0, nodeIds.length )
+                    .mapToObj( i -> {
+                        long started = System.nanoTime();
+                        try
+                        {
+                            return new FullTextIndex.NodeAndScore( db.getNodeById( nodeIds[i] ), scores[i] );
+                        }
+                        catch ( NotFoundException e )
+                        {
+                            return null;
+                        }
+                        finally
+                        {
+                            call.materialized( System.nanoTime() - started );
+                        }
+                    } )
+                    .filter( hit -> hit != null );
+        }
+    }
+}
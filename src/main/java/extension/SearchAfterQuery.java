@@ -0,0 +1,191 @@
+package extension;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Matches what the wrapped query matches, but only the hits that sort after a
+ * given hit in {@link PageCursor#ORDER}: a lower score, or the same score and a
+ * higher node id.
+ *
+ * Earlier pages are skipped while matching, so the collector only ever keeps
+ * one page worth of hits, however deep the page is.
+ */
+public class SearchAfterQuery extends Query
+{
+    private final Query query;
+    private final float score;
+    private final long nodeId;
+
+    public SearchAfterQuery( Query query, float score, long nodeId )
+    {
+        this.query = query;
+        this.score = score;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public Query rewrite( IndexReader reader ) throws IOException
+    {
+        Query rewritten = query.rewrite( reader );
+        return rewritten == query ? this : new SearchAfterQuery( rewritten, score, nodeId );
+    }
+
+    @Override
+    public Weight createWeight( IndexSearcher searcher, boolean needsScores ) throws IOException
+    {
+        // The scores decide what to skip, so they are needed either way
+        Weight weight = searcher.createWeight( query, true );
+        return new Weight( this )
+        {
+            @Override
+            public void extractTerms( Set<Term> terms )
+            {
+                weight.extractTerms( terms );
+            }
+
+            @Override
+            public Explanation explain( LeafReaderContext context, int doc ) throws IOException
+            {
+                return weight.explain( context, doc );
+            }
+
+            @Override
+            public float getValueForNormalization() throws IOException
+            {
+                return weight.getValueForNormalization();
+            }
+
+            @Override
+            public void normalize( float norm, float boost )
+            {
+                weight.normalize( norm, boost );
+            }
+
+            @Override
+            public Scorer scorer( LeafReaderContext context ) throws IOException
+            {
+                Scorer scorer = weight.scorer( context );
+                if ( scorer == null )
+                {
+                    return null;
+                }
+                NumericDocValues ids = DocValues.getNumeric( context.reader(), PageCursor.ID_FIELD );
+                return new AfterScorer( this, scorer, ids );
+            }
+        };
+    }
+
+    @Override
+    public String toString( String field )
+    {
+        return "after(" + query.toString( field ) + ", " + score + ", " + nodeId + ")";
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !super.equals( o ) )
+        {
+            return false;
+        }
+        SearchAfterQuery that = (SearchAfterQuery) o;
+        return query.equals( that.query ) && Float.compare( score, that.score ) == 0 && nodeId == that.nodeId;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (31 * (31 * super.hashCode() + query.hashCode()) + Float.hashCode( score )) + Long.hashCode( nodeId );
+    }
+
+    private class AfterScorer extends Scorer
+    {
+        private final Scorer scorer;
+        private final DocIdSetIterator iterator;
+
+        AfterScorer( Weight weight, Scorer scorer, NumericDocValues ids )
+        {
+            super( weight );
+            this.scorer = scorer;
+            DocIdSetIterator matches = scorer.iterator();
+            this.iterator = new DocIdSetIterator()
+            {
+                @Override
+                public int docID()
+                {
+                    return matches.docID();
+                }
+
+                @Override
+                public int nextDoc() throws IOException
+                {
+                    return skipSeen( matches.nextDoc() );
+                }
+
+                @Override
+                public int advance( int target ) throws IOException
+                {
+                    return skipSeen( matches.advance( target ) );
+                }
+
+                @Override
+                public long cost()
+                {
+                    return matches.cost();
+                }
+
+                private int skipSeen( int doc ) throws IOException
+                {
+                    while ( doc != NO_MORE_DOCS && !isAfter( doc ) )
+                    {
+                        doc = matches.nextDoc();
+                    }
+                    return doc;
+                }
+
+                private boolean isAfter( int doc ) throws IOException
+                {
+                    float docScore = scorer.score();
+                    return docScore < score || (docScore == score && ids.get( doc ) > nodeId);
+                }
+            };
+        }
+
+        @Override
+        public int docID()
+        {
+            return iterator.docID();
+        }
+
+        @Override
+        public float score() throws IOException
+        {
+            return scorer.score();
+        }
+
+        @Override
+        public int freq() throws IOException
+        {
+            return scorer.freq();
+        }
+
+        @Override
+        public DocIdSetIterator iterator()
+        {
+            return iterator;
+        }
+    }
+}
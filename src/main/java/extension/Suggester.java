@@ -0,0 +1,176 @@
+package extension;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Prefix completions over the terms of an index, for type-ahead.
+ *
+ * The indexed terms of the text properties, and the whole values of keyword
+ * properties, go into a weighted FST, weighted by how many documents hold them.
+ * A lookup walks the prefix and takes the best {@code k} paths below it, so it
+ * costs about the length of the prefix and of the completions, however many
+ * terms match, and never reads a document or a node.
+ *
+ * The FST is built from the term dictionary the first time an index is asked for
+ * suggestions, and rebuilt in the background once the index has changed, at most
+ * every {@link #REFRESH_MILLIS} milliseconds; until the new one is swapped in,
+ * suggestions come from the old one and may miss the newest terms. See
+ * {@link IndexRegistry#suggester}.
+ */
+public class Suggester
+{
+    // System property, the least time between two rebuilds of the same index
+    public static final String REFRESH_MILLIS = "chinese.fulltext.suggest_refresh_ms";
+
+    private static final long DEFAULT_REFRESH_MILLIS = 1000;
+    private static final PositiveIntOutputs OUTPUTS = PositiveIntOutputs.getSingleton();
+
+    // null when the index has no terms
+    private final FST<Long> fst;
+    private final boolean lowerCase;
+    private final long generation;
+    private final long builtAt = System.currentTimeMillis();
+
+    private Suggester( FST<Long> fst, boolean lowerCase, long generation )
+    {
+        this.fst = fst;
+        this.lowerCase = lowerCase;
+        this.generation = generation;
+    }
+
+    /**
+     * Build the suggester of an index from its current terms.
+     *
+     * @param generation the generation of the index the terms are read at
+     */
+    public static Suggester build( GraphDatabaseService db, String indexName, Map<String,String> config, long generation )
+    {
+        FieldMappings mappings = FieldMappings.of( config );
+        List<String> fields = new ArrayList<>();
+        for ( String key : PropertyCatalog.keys( db, indexName ) )
+        {
+            String type = mappings.typeOf( key );
+            if ( FieldMappings.TEXT.equals( type ) )
+            {
+                fields.add( key );
+            }
+            else if ( FieldMappings.KEYWORD.equals( type ) )
+            {
+                // Kept whole in the exact copy
+                fields.add( key + "_e" );
+            }
+        }
+        FST<Long> fst = LuceneIndexes.withIndex( db, indexName, ( writer, searcher ) -> build( searcher.getIndexReader(), fields ) );
+        return new Suggester( fst, !"false".equals( config.get( "to_lower_case" ) ), generation );
+    }
+
+    private static FST<Long> build( IndexReader reader, List<String> fields ) throws IOException
+    {
+        // The FST takes its inputs in byte order, and a term may occur in several fields
+        TreeMap<BytesRef,Long> weights = new TreeMap<>();
+        for ( String field : fields )
+        {
+            Terms terms = MultiFields.getTerms( reader, field );
+            if ( terms == null )
+            {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            for ( BytesRef term = termsEnum.next(); term != null; term = termsEnum.next() )
+            {
+                weights.merge( BytesRef.deepCopyOf( term ), (long) termsEnum.docFreq(), Long::sum );
+            }
+        }
+        if ( weights.isEmpty() )
+        {
+            return null;
+        }
+        Builder<Long> builder = new Builder<>( FST.INPUT_TYPE.BYTE1, OUTPUTS );
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        for ( Map.Entry<BytesRef,Long> entry : weights.entrySet() )
+        {
+            builder.add( Util.toIntsRef( entry.getKey(), scratch ), cost( entry.getValue() ) );
+        }
+        return builder.finish();
+    }
+
+    /**
+     * @return the {@code k} most frequent terms starting with the prefix, the most frequent first
+     */
+    public List<FullTextIndex.Suggestion> suggest( String prefix, int k )
+    {
+        List<FullTextIndex.Suggestion> suggestions = new ArrayList<>();
+        if ( fst == null || k <= 0 )
+        {
+            return suggestions;
+        }
+        BytesRef bytes = new BytesRef( lowerCase ? prefix.toLowerCase( Locale.ROOT ) : prefix );
+        try
+        {
+            FST.BytesReader in = fst.getBytesReader();
+            FST.Arc<Long> arc = fst.getFirstArc( new FST.Arc<>() );
+            Long output = OUTPUTS.getNoOutput();
+            for ( int i = 0; i < bytes.length; i++ )
+            {
+                if ( fst.findTargetArc( bytes.bytes[bytes.offset + i] & 0xFF, arc, arc, in ) == null )
+                {
+                    return suggestions;
+                }
+                output = OUTPUTS.add( output, arc.output );
+            }
+            for ( Util.Result<Long> completion : Util.shortestPaths( fst, arc, output, Long::compare, k, true ) )
+            {
+                byte[] term = new byte[bytes.length + completion.input.length];
+                System.arraycopy( bytes.bytes, bytes.offset, term, 0, bytes.length );
+                for ( int i = 0; i < completion.input.length; i++ )
+                {
+                    term[bytes.length + i] = (byte) completion.input.ints[completion.input.offset + i];
+                }
+                suggestions.add( new FullTextIndex.Suggestion( new String( term, StandardCharsets.UTF_8 ), weight( completion.output ) ) );
+            }
+            return suggestions;
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Failed to look up suggestions for `" + prefix + "`", e );
+        }
+    }
+
+    /**
+     * @return whether the suggester should be rebuilt for the given generation of its index
+     */
+    public boolean isStale( long currentGeneration )
+    {
+        return currentGeneration != generation &&
+               System.currentTimeMillis() - builtAt >= Long.getLong( REFRESH_MILLIS, DEFAULT_REFRESH_MILLIS );
+    }
+
+    // Paths are searched for the smallest output, so the heaviest term costs least
+    private static long cost( long weight )
+    {
+        return Integer.MAX_VALUE - Math.min( weight, Integer.MAX_VALUE );
+    }
+
+    private static long weight( long cost )
+    {
+        return Integer.MAX_VALUE - cost;
+    }
+}
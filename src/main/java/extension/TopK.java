@@ -0,0 +1,54 @@
+package extension;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the {@code k} highest scoring hits offered to it, in O(k) memory.
+ *
+ * Used to merge the results of several indexes without collecting and
+ * sorting every hit.
+ */
+public class TopK<T>
+{
+    private final int k;
+    private final ToDoubleFunction<T> score;
+    private final Comparator<T> byScore;
+    // Min-heap, so the weakest of the current top k is the one to evict
+    private final PriorityQueue<T> heap;
+
+    public TopK( long k, ToDoubleFunction<T> score )
+    {
+        this.k = (int) Math.max( 0, Math.min( k, Integer.MAX_VALUE - 1 ) );
+        this.score = score;
+        this.byScore = Comparator.comparingDouble( score );
+        this.heap = new PriorityQueue<>( Math.min( this.k, 1024 ) + 1, byScore );
+    }
+
+    public void offer( T hit )
+    {
+        if ( heap.size() < k )
+        {
+            heap.add( hit );
+        }
+        else if ( k > 0 && score.applyAsDouble( hit ) > score.applyAsDouble( heap.peek() ) )
+        {
+            heap.poll();
+            heap.add( hit );
+        }
+    }
+
+    /**
+     * @return the kept hits, best first
+     */
+    public Stream<T> stream()
+    {
+        List<T> hits = new ArrayList<>( heap );
+        hits.sort( byScore.reversed() );
+        return hits.stream();
+    }
+}
@@ -1,12 +1,27 @@
 package extension;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Rule;
 import org.junit.Test;
 import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.exceptions.ClientException;
 import org.neo4j.harness.junit.Neo4jRule;
 
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.neo4j.driver.v1.Values.parameters;
 
 public class LegacyFullTextIndexTest
@@ -41,4 +56,873 @@ public class LegacyFullTextIndexTest
             assertThat( result.single().get( "nodeId" ).asLong(), equalTo( nodeId ) );
         }
     }
+
+    @Test
+    public void shouldBulkIndexALabelInBatches() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given five nodes with the same label
+            session.run( "UNWIND range(1, 5) AS i CREATE (:Article {title:'Brookreson ' + i})" );
+
+            // When I bulk index the label two nodes per batch
+            Record progress = session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', ['title'], {batchSize: 2})" )
+                    .single();
+
+            // Then every node is indexed in three committed batches
+            assertThat( progress.get( "nodes" ).asLong(), equalTo( 5L ) );
+            assertThat( progress.get( "batches" ).asLong(), equalTo( 3L ) );
+            StatementResult result = session.run( "CALL example.search('Article', 'title:brookreson')" );
+            assertThat( result.list().size(), equalTo( 5 ) );
+        }
+    }
+
+    @Test
+    public void shouldIndexSeveralLabelsInParallel() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given seven nodes of each of two labels
+            session.run( "UNWIND range(1, 7) AS i CREATE (:Article {title:'Brookreson ' + i}), (:User {name:'Brookreson ' + i})" );
+
+            // When I index both labels on two workers, three nodes per task
+            Record progress = session.run( "CALL chineseFulltextIndex.parallelIndexByLabels(['Article', 'User'], {threads: 2, batchSize: 3}) " +
+                    "YIELD tasks, nodes RETURN sum(tasks) AS tasks, sum(nodes) AS nodes" ).single();
+
+            // Then the workers indexed every node, in three tasks per label
+            assertThat( progress.get( "tasks" ).asLong(), equalTo( 6L ) );
+            assertThat( progress.get( "nodes" ).asLong(), equalTo( 14L ) );
+            assertThat( session.run( "CALL example.search('Article', 'title:brookreson')" ).list().size(), equalTo( 7 ) );
+            assertThat( session.run( "CALL example.search('User', 'name:brookreson')" ).list().size(), equalTo( 7 ) );
+        }
+    }
+
+    @Test
+    public void shouldKeepAutoUpdatedIndexInStepWithWrites() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given the User index is maintained incrementally
+            session.run( "CREATE (:User {name:'Somebody'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('User', ['name'])" ).consume();
+            session.run( "CALL chineseFulltextIndex.autoUpdate('User', 'User', ['name'], true)" ).consume();
+
+            // When I create a node and later rename it
+            long nodeId = session.run( "CREATE (p:User {name:'Brookreson'}) RETURN id(p)" )
+                    .single()
+                    .get( 0 ).asLong();
+            assertThat( session.run( "CALL example.search('User', 'name:brookreson')" ).single()
+                    .get( "nodeId" ).asLong(), equalTo( nodeId ) );
+            session.run( "MATCH (p:User) WHERE id(p) = {id} SET p.name = 'Ericsson'", parameters( "id", nodeId ) );
+
+            // Then only the new value is found, without re-running any index procedure
+            assertThat( session.run( "CALL example.search('User', 'name:brookreson')" ).list().size(), equalTo( 0 ) );
+            assertThat( session.run( "CALL example.search('User', 'name:ericsson')" ).single()
+                    .get( "nodeId" ).asLong(), equalTo( nodeId ) );
+        }
+    }
+
+    @Test
+    public void shouldDropDeletedAndUnlabelledNodesFromAutoUpdatedIndex() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given three users in an index that is maintained incrementally
+            session.run( "UNWIND ['Brookreson one', 'Brookreson two', 'Brookreson three'] AS name CREATE (:User {name:name})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('User', ['name'])" ).consume();
+            session.run( "CALL chineseFulltextIndex.autoUpdate('User', 'User', ['name'], true)" ).consume();
+
+            // When I delete one of them and take the label off another
+            session.run( "MATCH (p:User {name:'Brookreson two'}) DETACH DELETE p" );
+            session.run( "MATCH (p:User {name:'Brookreson three'}) REMOVE p:User" );
+
+            // Then the index only holds the remaining user, even by id
+            assertThat( session.run( "CALL chineseFulltextIndex.queryIdsByLabel(['User'], 'brookreson')" ).list().size(), equalTo( 1 ) );
+            assertThat( session.run( "CALL example.search('User', 'name:brookreson')" ).single()
+                    .get( "nodeId" ).asLong(), equalTo( session.run( "MATCH (p:User) RETURN id(p)" ).single().get( 0 ).asLong() ) );
+        }
+    }
+
+    @Test
+    public void shouldRefuseToAutoUpdateAMissingIndex() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            try
+            {
+                session.run( "CALL chineseFulltextIndex.autoUpdate('User', 'User', ['name'], true)" ).consume();
+                fail( "Auto update of a missing index should fail" );
+            }
+            catch ( ClientException e )
+            {
+                assertThat( e.getMessage().contains( "No such index: `User`" ), equalTo( true ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindTheSameNodesWithReadOnlySearches() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given two of three users indexed under a matching name
+            session.run( "CREATE (:User {name:'Brookreson'}), (:User {name:'Brookreson Ericsson'}), (:User {name:'Ericsson'})" );
+            session.run( "MATCH (p:User) CALL example.index(id(p), ['name']) RETURN count(*)" ).consume();
+            List<Long> expected = session.run( "MATCH (p:User) WHERE p.name STARTS WITH 'Brookreson' RETURN id(p) ORDER BY id(p)" )
+                    .list( record -> record.get( 0 ).asLong() );
+
+            // Then both searches, which run in read transactions, find exactly those users
+            assertThat( session.run( "CALL example.search('User', 'name:brookreson') YIELD nodeId RETURN nodeId ORDER BY nodeId" )
+                    .list( record -> record.get( 0 ).asLong() ), equalTo( expected ) );
+            assertThat( session.run( "CALL userdefined.index.ChineseFullIndexSearch('User', 'name:brookreson', 10) YIELD node RETURN id(node) ORDER BY id(node)" )
+                    .list( record -> record.get( 0 ).asLong() ), equalTo( expected ) );
+            assertThat( session.run( "CALL userdefined.index.ChineseFullIndexSearch('User', 'name:brookreson', 1)" ).list().size(), equalTo( 1 ) );
+
+            // And a missing index finds nothing rather than being created
+            assertThat( session.run( "CALL example.search('Nobody', 'name:brookreson')" ).list().size(), equalTo( 0 ) );
+            assertThat( session.run( "CALL userdefined.index.ChineseFullIndexSearch('Nobody', 'name:brookreson', 10)" ).list().size(), equalTo( 0 ) );
+        }
+    }
+
+    @Test
+    public void shouldMergeTheBestHitsOfEveryLabel() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given two labelled indexes whose hits score lower the longer the value
+            session.run( "UNWIND range(0, 4) AS i " +
+                    "CREATE (:User {name:'Brookreson' + reduce(s = '', j IN range(1, i) | s + ' x' + j)})," +
+                    " (:Article {title:'Brookreson' + reduce(s = '', j IN range(1, i) | s + ' y' + j + ' z' + j)})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('User', [])" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', [])" ).consume();
+            List<Double> all = session.run( "CALL chineseFulltextIndex.queryByLabel(['User', 'Article'], 'brookreson')" )
+                    .list( record -> record.get( "score" ).asDouble() );
+
+            // When I only ask for the best three
+            List<Double> best = session.run( "CALL chineseFulltextIndex.queryByLabelWithScoreAndLimit(['User', 'Article'], 'brookreson', 0.0, 3)" )
+                    .list( record -> record.get( "score" ).asDouble() );
+
+            // Then I get the three highest scores of both indexes, highest first
+            assertThat( all.size(), equalTo( 10 ) );
+            List<Double> sorted = new ArrayList<>( all );
+            sorted.sort( Collections.reverseOrder() );
+            assertThat( all, equalTo( sorted ) );
+            assertThat( best, equalTo( all.subList( 0, 3 ) ) );
+        }
+    }
+
+    @Test
+    public void shouldFanOutOverEveryIndexAndNotCachePartialResults() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given three indexes of three matching nodes each
+            session.run( "UNWIND range(1, 3) AS i CREATE (:User {name:'Brookreson ' + i}), (:Article {title:'Brookreson ' + i}), (:Book {title:'Brookreson ' + i})" );
+            for ( String label : Arrays.asList( "User", "Article", "Book" ) )
+            {
+                session.run( "CALL chineseFulltextIndex.bulkIndexByLabel({label}, [])", parameters( "label", label ) ).consume();
+            }
+
+            // When a search gives the indexes no time at all, it returns what finished, if anything
+            List<Long> partial = session.run( "CALL chineseFulltextIndex.queryByValueConcurrent('brookreson', 0.0, 100, 0) YIELD node RETURN id(node)" )
+                    .list( record -> record.get( 0 ).asLong() );
+
+            // Then the same search with time to spare isn't served that partial result, but all nine nodes
+            List<Long> all = session.run( "CALL chineseFulltextIndex.queryByValueConcurrent('brookreson', 0.0, 100, 10000) YIELD node RETURN id(node)" )
+                    .list( record -> record.get( 0 ).asLong() );
+            assertThat( all.size(), equalTo( 9 ) );
+            assertThat( all.containsAll( partial ), equalTo( true ) );
+
+            // And a limit applies to the merged hits of all indexes
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByValueConcurrent('brookreson', 0.0, 4, 10000)" ).list().size(), equalTo( 4 ) );
+        }
+    }
+
+    @Test
+    public void shouldCatalogTheKeysOfConcurrentTransactions() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given an index that is maintained incrementally
+            session.run( "CREATE (:Article {title:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', [])" ).consume();
+            session.run( "CALL chineseFulltextIndex.autoUpdate('Article', 'Article', [], true)" ).consume();
+
+            // When eight clients at once each add nodes under property keys of their own
+            ExecutorService clients = Executors.newFixedThreadPool( 8 );
+            List<Future<?>> done = new ArrayList<>();
+            for ( int i = 0; i < 8; i++ )
+            {
+                String client = "k" + i + "_";
+                done.add( clients.submit( () -> {
+                    try ( Session own = driver.session() )
+                    {
+                        for ( int j = 0; j < 5; j++ )
+                        {
+                            own.run( "CREATE (:Article {" + client + j + ":'Brookreson'})" ).consume();
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> future : done )
+            {
+                future.get();
+            }
+            clients.shutdown();
+
+            // Then every key made it into the catalog, so a search over all of them finds every node
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByLabel(['Article'], 'brookreson')" ).list().size(), equalTo( 41 ) );
+        }
+    }
+
+    @Test
+    public void shouldReuseParsedQueriesOnlyWhileTheyStillHold() throws Throwable
+    {
+        Path dictionary = Files.createTempFile( "ext", ".dic" );
+        Files.write( dictionary, Collections.singletonList( "图书馆" ), StandardCharsets.UTF_8 );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given two products whose codes share a term
+            session.run( "CREATE (:Product {code:'AB-12 X'}), (:Product {code:'AB-13'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Product', [])" ).consume();
+
+            // Then repeating a query, which reuses the parsed query, finds the same nodes
+            List<String> first = session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['code'], 'AB') YIELD node RETURN node.code ORDER BY node.code" )
+                    .list( record -> record.get( 0 ).asString() );
+            assertThat( first, equalTo( Arrays.asList( "AB-12 X", "AB-13" ) ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['code'], 'AB') YIELD node RETURN node.code ORDER BY node.code" )
+                    .list( record -> record.get( 0 ).asString() ), equalTo( first ) );
+
+            // And once the codes are mapped as keywords, the same query is built anew and only matches whole codes
+            session.run( "CALL chineseFulltextIndex.mapFields('Product', {code:'keyword'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Product', [])" ).consume();
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['code'], 'AB')" ).list().size(), equalTo( 0 ) );
+
+            // And a query parsed before a dictionary reload is not reused after it
+            session.run( "CREATE (:Note {text:'我喜欢鲁瑞克森布的书'})" );
+            session.run( "CALL userdefined.index.addChineseFullTextIndex('Note', 'Note', ['text'], {mode:'smart', dictionary:{dictionary}})",
+                    parameters( "dictionary", dictionary.toString() ) ).consume();
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Note', ['text'], '鲁瑞克森布')" ).list().size(), equalTo( 1 ) );
+            Files.write( dictionary, Arrays.asList( "图书馆", "鲁瑞克森布" ), StandardCharsets.UTF_8 );
+            session.run( "CALL chineseFulltextIndex.reloadDictionary()" ).consume();
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Note', ['text'], '鲁瑞克森布')" ).list().size(), equalTo( 1 ) );
+        }
+        finally
+        {
+            Files.delete( dictionary );
+        }
+    }
+
+    @Test
+    public void shouldMatchEveryWordOfAValueAndTrailingPrefixes() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given users with one and with several words in their names
+            session.run( "CREATE (:User {name:'Ericsson Brookreson Jr'}), (:User {name:'Brookline'}), (:User {name:'Ericsson'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('User', [])" ).consume();
+
+            // Then a value of several words finds the user with all of them, in any order
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('User', ['name'], 'Brookreson Ericsson') YIELD node RETURN node.name" )
+                    .single().get( 0 ).asString(), equalTo( "Ericsson Brookreson Jr" ) );
+
+            // And a trailing wildcard matches the last word as a prefix only
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('User', ['name'], 'Brook*')" ).list().size(), equalTo( 2 ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('User', ['name'], 'Ericsson Brook*') YIELD node RETURN node.name" )
+                    .single().get( 0 ).asString(), equalTo( "Ericsson Brookreson Jr" ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('User', ['name'], 'Brook')" ).list().size(), equalTo( 0 ) );
+        }
+    }
+
+    @Test
+    public void shouldScorePhrasesByTheLengthOfTheShortestMatchingProperty() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given the same phrase in titles of two and of four terms, and in a long title with a short summary
+            session.run( "CREATE (:Article {title:'Brookreson Ericsson'}), (:Article {title:'life story Brookreson Ericsson'})," +
+                    " (:Article {title:'long life story of Brookreson Ericsson', summary:'Brookreson Ericsson'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', [])" ).consume();
+
+            // When I search for the phrase
+            StatementResult result = session.run( "CALL chineseFulltextIndex.queryByPropertyWithScore('Article', ['title', 'summary'], '\"Brookreson Ericsson\"', 0.0) " +
+                    "YIELD node, score RETURN node.title AS title, score" );
+            double two = 0, four = 0, summary = 0;
+            for ( Record hit : result.list() )
+            {
+                String title = hit.get( "title" ).asString();
+                double score = hit.get( "score" ).asDouble();
+                if ( title.equals( "Brookreson Ericsson" ) )
+                {
+                    two = score;
+                }
+                else if ( title.startsWith( "life" ) )
+                {
+                    four = score;
+                }
+                else
+                {
+                    summary = score;
+                }
+            }
+
+            // Then a hit scores about 1 / terms of its field, stored lossily so never above it
+            assertThat( two <= 1.0 / 2 && two > 1.0 / 4, equalTo( true ) );
+            assertThat( four <= 1.0 / 4 && four > 1.0 / 8, equalTo( true ) );
+            // And the shorter property decides, whichever property it is
+            assertThat( summary, equalTo( two ) );
+        }
+    }
+
+    @Test
+    public void shouldReturnNodeIdsWithoutNodes() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given an indexed node
+            long nodeId = session.run( "CREATE (p:User {name:'Brookreson'}) RETURN id(p)" )
+                    .single()
+                    .get( 0 ).asLong();
+            session.run( "CALL chineseFulltextIndex.addNodesIndexByLabel('User')" ).consume();
+
+            // When I search for ids only
+            Record hit = session.run( "CALL chineseFulltextIndex.queryIdsByLabel(['User'], 'brookreson')" ).single();
+
+            // Then the hit carries the id and the index it came from
+            assertThat( hit.get( "nodeId" ).asLong(), equalTo( nodeId ) );
+            assertThat( hit.get( "index" ).asString(), equalTo( "User" ) );
+        }
+    }
+
+    @Test
+    public void shouldPageThroughHitsWithCursors() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given five indexed nodes that all score the same
+            session.run( "UNWIND range(1, 5) AS i CREATE (:Article {title:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.addNodesIndexByLabel('Article')" ).consume();
+
+            // When I page through them two at a time
+            Set<Long> seen = new HashSet<>();
+            String cursor = "";
+            int pages = 0;
+            while ( true )
+            {
+                List<Record> page = session.run( "CALL chineseFulltextIndex.queryByPropertyPage('Article', ['title'], 'brookreson', 2, {cursor})",
+                        parameters( "cursor", cursor ) ).list();
+                if ( page.isEmpty() )
+                {
+                    break;
+                }
+                pages++;
+                for ( Record hit : page )
+                {
+                    seen.add( hit.get( "node" ).asNode().id() );
+                }
+                cursor = page.get( page.size() - 1 ).get( "cursor" ).asString();
+            }
+
+            // Then every node shows up exactly once across three pages
+            assertThat( seen.size(), equalTo( 5 ) );
+            assertThat( pages, equalTo( 3 ) );
+        }
+    }
+
+    @Test
+    public void shouldNotServeCachedResultsAfterAWrite() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a search that has been answered, and so cached, once
+            session.run( "CREATE (:User {name:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.addNodesIndexByLabel('User')" ).consume();
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByLabelWithScoreAndLimit(['User'], 'brookreson', 0.0, 10)" )
+                    .list().size(), equalTo( 1 ) );
+
+            // When another matching node is indexed
+            session.run( "CREATE (:User {name:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.addNodesIndexByLabel('User')" ).consume();
+
+            // Then the same search sees it
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByLabelWithScoreAndLimit(['User'], 'brookreson', 0.0, 10)" )
+                    .list().size(), equalTo( 2 ) );
+        }
+    }
+
+    @Test
+    public void shouldSearchSeveralLabelsInOneGlobalIndex() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given nodes of two labels in the global index only
+            session.run( "CREATE (:User {name:'Brookreson'}), (:Article {title:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.addGlobalIndex(['User', 'Article'])" ).consume();
+
+            // Then a label search is filtered to that label, and a value search finds both
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByLabel(['User'], 'brookreson')" )
+                    .list().size(), equalTo( 1 ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByValue('brookreson')" )
+                    .list().size(), equalTo( 2 ) );
+        }
+    }
+
+    @Test
+    public void shouldRebuildTheGlobalIndexForOnlyTheLabelsItCovers() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a global index over all labels, rebuilt for articles only
+            session.run( "CREATE (:User {name:'Brookreson'}), (:Article {title:'Brookreson'}), (:User:Article {name:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.addGlobalIndex([])" ).consume();
+            session.run( "CALL chineseFulltextIndex.addGlobalIndex(['Article'])" ).consume();
+
+            // Then the user who is no article is gone from it
+            assertThat( session.run( "START n=node:__global__('name:brookreson OR title:brookreson') RETURN n" )
+                    .list().size(), equalTo( 2 ) );
+
+            // When a label shows up after a build over all labels
+            session.run( "CALL chineseFulltextIndex.addGlobalIndex([])" ).consume();
+            session.run( "CREATE (:Author {name:'Brookreson'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Author')" ).consume();
+
+            // Then it is searched in its own index
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByLabel(['Author'], 'brookreson')" )
+                    .list().size(), equalTo( 1 ) );
+        }
+    }
+
+    @Test
+    public void shouldMergeSegmentsAfterABulkBuild() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a label bulk indexed in many small batches
+            session.run( "UNWIND range(1, 20) AS i CREATE (:Article {title:'Brookreson ' + i})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', ['title'], {batchSize: 2, mergePolicy: 'tiered'})" ).consume();
+
+            // When I optimize the index down to one segment
+            Record optimized = session.run( "CALL chineseFulltextIndex.optimize('Article', 1)" ).single();
+
+            // Then it has a single segment and still finds every node
+            assertThat( optimized.get( "segmentsAfter" ).asLong(), equalTo( 1L ) );
+            assertThat( session.run( "CALL example.search('Article', 'title:brookreson')" ).list().size(), equalTo( 20 ) );
+        }
+    }
+
+    @Test
+    public void shouldIndexAndSearchPropertiesByTheirMapping() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given an index mapping a keyword, a number and a skipped property
+            session.run( "CALL chineseFulltextIndex.mapFields('Product', {code:'keyword', price:'numeric', note:'skip'})" ).consume();
+            session.run( "CREATE (:Product {name:'Brookreson phone', code:'AB-12 X', price:300, note:'secret'})," +
+                    " (:Product {name:'Brookreson phone case', code:'AB-13', price:20, note:'secret'})," +
+                    " (:Product {name:'Brookreson phone stand', code:'AB-14', price:150.5, note:'secret'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Product', [])" ).consume();
+
+            // Then a keyword only matches its whole value
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['code'], 'AB-12 X')" ).list().size(), equalTo( 1 ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['code'], 'AB')" ).list().size(), equalTo( 0 ) );
+
+            // And skipped properties aren't searchable
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Product', ['note'], 'secret')" ).list().size(), equalTo( 0 ) );
+
+            // And integer bounds find integer and fractional prices alike
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByPropertyInRange('Product', ['name'], 'phone', {price:[100, 500]})" )
+                    .list().size(), equalTo( 2 ) );
+            Record hit = session.run( "CALL chineseFulltextIndex.queryByPropertyInRange('Product', ['name'], 'phone', {price:[200, null]})" ).single();
+            assertThat( hit.get( "node" ).asNode().get( "price" ).asLong(), equalTo( 300L ) );
+
+            // And only numeric properties take a range
+            try
+            {
+                session.run( "CALL chineseFulltextIndex.queryByPropertyInRange('Product', ['name'], 'phone', {code:[1, 2]})" ).consume();
+                fail( "A range over a keyword should fail" );
+            }
+            catch ( ClientException e )
+            {
+                assertThat( e.getMessage().contains( "Property `code` is mapped as keyword" ), equalTo( true ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldSegmentChineseWithTheCustomDictionary() throws Throwable
+    {
+        Path dictionary = Files.createTempFile( "ext", ".dic" );
+        Files.write( dictionary, Collections.singletonList( "布鲁克瑞森" ), StandardCharsets.UTF_8 );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a Chinese index in smart mode with a custom word
+            session.run( "CREATE (:Book {title:'我喜欢布鲁克瑞森的书'})" );
+            session.run( "CALL userdefined.index.addChineseFullTextIndex('Book', 'Book', ['title'], {mode:'smart', dictionary:{dictionary}})",
+                    parameters( "dictionary", dictionary.toString() ) ).consume();
+
+            // Then the word is found as a whole, and its characters are no words of their own
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Book', ['title'], '布鲁克瑞森')" ).list().size(), equalTo( 1 ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Book', ['title'], '克瑞')" ).list().size(), equalTo( 0 ) );
+        }
+        finally
+        {
+            Files.delete( dictionary );
+        }
+    }
+
+    @Test
+    public void shouldReindexOnlyNodesWithNewDictionaryWords() throws Throwable
+    {
+        Path dictionary = Files.createTempFile( "ext", ".dic" );
+        Files.write( dictionary, Collections.singletonList( "图书馆" ), StandardCharsets.UTF_8 );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a Chinese index whose text contains a word IK doesn't know yet, next to a number
+            session.run( "CREATE (:Note {text:'我喜欢鲁瑞克森布的书', year:2010}), (:Note {text:'今天去图书馆', year:2011})" );
+            session.run( "CALL userdefined.index.addChineseFullTextIndex('Note', 'Note', ['text', 'year'], {mode:'smart', dictionary:{dictionary}})",
+                    parameters( "dictionary", dictionary.toString() ) ).consume();
+            session.run( "CALL chineseFulltextIndex.mapFields('Note', {year:'numeric'})" ).consume();
+            session.run( "CALL userdefined.index.addChineseFullTextIndex('Note', 'Note', ['text', 'year'], {mode:'smart', dictionary:{dictionary}})",
+                    parameters( "dictionary", dictionary.toString() ) ).consume();
+
+            // When the word is added to the dictionary file and the dictionary reloaded
+            Files.write( dictionary, Arrays.asList( "图书馆", "鲁瑞克森布" ), StandardCharsets.UTF_8 );
+            Record reload = session.run( "CALL chineseFulltextIndex.reloadDictionary()" ).single();
+
+            // Then only the node containing it is reindexed, and it is found by the whole word only
+            assertThat( reload.get( "changedWords" ).asLong(), equalTo( 1L ) );
+            assertThat( reload.get( "nodes" ).asLong(), equalTo( 1L ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Note', ['text'], '鲁瑞克森布')" ).list().size(), equalTo( 1 ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Note', ['text'], '森布')" ).list().size(), equalTo( 0 ) );
+
+            // And the reindexed node keeps its number
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByPropertyInRange('Note', ['text'], '鲁瑞克森布', {year:[2000, null]})" )
+                    .list().size(), equalTo( 1 ) );
+        }
+        finally
+        {
+            Files.delete( dictionary );
+        }
+    }
+
+    @Test
+    public void shouldReportLatencyPerProcedureAndIndex() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given an index and statistics starting from nothing
+            session.run( "CREATE (:Report {title:'quarterly numbers'}), (:Report {title:'yearly numbers'})" );
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Report', [])" ).consume();
+            session.run( "CALL chineseFulltextIndex.stats(true)" ).consume();
+
+            // When a query is run
+            session.run( "CALL chineseFulltextIndex.queryByProperty('Report', ['title'], 'numbers')" ).consume();
+
+            // Then its procedure and the index it searched are both reported
+            Record procedure = session.run( "CALL chineseFulltextIndex.stats() YIELD scope, name, calls, scanned, returned " +
+                    "WHERE scope = 'procedure' RETURN name, calls, scanned, returned" ).single();
+            assertThat( procedure.get( "name" ).asString(), equalTo( "chineseFulltextIndex.queryByProperty" ) );
+            assertThat( procedure.get( "calls" ).asLong(), equalTo( 1L ) );
+            assertThat( procedure.get( "scanned" ).asLong(), equalTo( 2L ) );
+            assertThat( procedure.get( "returned" ).asLong(), equalTo( 2L ) );
+            Record index = session.run( "CALL chineseFulltextIndex.stats() YIELD scope, name, calls WHERE scope = 'index' RETURN name, calls" ).single();
+            assertThat( index.get( "name" ).asString(), equalTo( "Report" ) );
+            assertThat( index.get( "calls" ).asLong(), equalTo( 1L ) );
+        }
+    }
+
+    @Test
+    public void shouldImportASnapshotAndReplayLaterChanges() throws Throwable
+    {
+        Path snapshots = Files.createTempDirectory( "snapshots" );
+        System.setProperty( IndexSnapshot.SNAPSHOT_DIR, snapshots.toString() );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a snapshot of a built index
+            session.run( "CREATE (:Article {title:'graph search'}), (:Article {title:'graph storage'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', [])" ).consume();
+            Record exported = session.run( "CALL chineseFulltextIndex.exportIndex('Article', 'Article.snapshot')" ).single();
+            assertThat( exported.get( "index" ).asString(), equalTo( "Article" ) );
+
+            // When a node is added after it, and the index is lost and imported again
+            session.run( "CREATE (:Article {title:'graph snapshot'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.removeIndexByLabel('Article')" ).consume();
+            Record imported = session.run( "CALL chineseFulltextIndex.importIndex('Article.snapshot')" ).single();
+
+            // Then only the later node is reindexed, and all three are found
+            assertThat( imported.get( "replayedNodes" ).asLong(), equalTo( 1L ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Article', ['title'], 'graph')" ).list().size(), equalTo( 3 ) );
+        }
+        finally
+        {
+            System.clearProperty( IndexSnapshot.SNAPSHOT_DIR );
+            Files.deleteIfExists( snapshots.resolve( "Article.snapshot" ) );
+            Files.delete( snapshots );
+        }
+    }
+
+    @Test
+    public void shouldKeepSnapshotsInTheSnapshotDirectory() throws Throwable
+    {
+        Path snapshots = Files.createTempDirectory( "snapshots" );
+        System.setProperty( IndexSnapshot.SNAPSHOT_DIR, snapshots.toString() );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a snapshot of a built index
+            session.run( "CREATE (:Article {title:'graph search'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Article', [])" ).consume();
+            session.run( "CALL chineseFulltextIndex.exportIndex('Article', 'Article.snapshot')" ).consume();
+
+            // When it is exported again without overwrite
+            try
+            {
+                session.run( "CALL chineseFulltextIndex.exportIndex('Article', 'Article.snapshot')" ).consume();
+                fail( "Should not overwrite an existing snapshot" );
+            }
+            catch ( ClientException e )
+            {
+                // Then it is refused
+                assertThat( e.getMessage().contains( "already exists" ), equalTo( true ) );
+            }
+            session.run( "CALL chineseFulltextIndex.exportIndex('Article', 'Article.snapshot', true)" ).consume();
+
+            // When a path leads out of the snapshot directory
+            try
+            {
+                session.run( "CALL chineseFulltextIndex.exportIndex('Article', '../Article.snapshot')" ).consume();
+                fail( "Should not write outside of the snapshot directory" );
+            }
+            catch ( ClientException e )
+            {
+                // Then it is refused
+                assertThat( e.getMessage().contains( "outside of the snapshot directory" ), equalTo( true ) );
+            }
+        }
+        finally
+        {
+            System.clearProperty( IndexSnapshot.SNAPSHOT_DIR );
+            Files.deleteIfExists( snapshots.resolve( "Article.snapshot" ) );
+            Files.delete( snapshots );
+        }
+    }
+
+    @Test
+    public void shouldSuggestTheMostFrequentCompletionsFirst() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given an index where one completion is more common than the other
+            session.run( "CREATE (:Term {name:'graph database'}), (:Term {name:'graph search'}), (:Term {name:'grammar'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Term', [])" ).consume();
+
+            // Then the common one comes first, and only the top k are returned
+            List<Record> suggestions = session.run( "CALL chineseFulltextIndex.suggest('Term', 'Gra', 1)" ).list();
+            assertThat( suggestions.size(), equalTo( 1 ) );
+            assertThat( suggestions.get( 0 ).get( "term" ).asString(), equalTo( "graph" ) );
+            assertThat( suggestions.get( 0 ).get( "weight" ).asLong(), equalTo( 2L ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.suggest('Term', 'gra', 10)" ).list().size(), equalTo( 2 ) );
+        }
+    }
+
+    @Test
+    public void shouldSwapInRebuiltSuggestionsInTheBackground() throws Throwable
+    {
+        System.setProperty( Suggester.REFRESH_MILLIS, "0" );
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given suggestions built for an index
+            session.run( "CREATE (:Term {name:'graph'}), (:Term {name:'grammar'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Term', [])" ).consume();
+            assertThat( session.run( "CALL chineseFulltextIndex.suggest('Term', 'gra', 10)" ).list().size(), equalTo( 2 ) );
+
+            // When the index gets a new term
+            session.run( "CREATE (:Term {name:'grape'})" ).consume();
+            session.run( "CALL chineseFulltextIndex.bulkIndexByLabel('Term', [])" ).consume();
+
+            // Then the old suggestions are served until the rebuilt ones replace them
+            assertThat( session.run( "CALL chineseFulltextIndex.suggest('Term', 'gra', 10)" ).list().size() >= 2, equalTo( true ) );
+            long deadline = System.currentTimeMillis() + 10_000;
+            int suggested;
+            do
+            {
+                Thread.sleep( 50 );
+                suggested = session.run( "CALL chineseFulltextIndex.suggest('Term', 'gra', 10)" ).list().size();
+            }
+            while ( suggested < 3 && System.currentTimeMillis() < deadline );
+            assertThat( suggested, equalTo( 3 ) );
+        }
+        finally
+        {
+            System.clearProperty( Suggester.REFRESH_MILLIS );
+        }
+    }
+
+    @Test
+    public void shouldBuildAnIndexInTheBackground() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given nodes to index
+            session.run( "UNWIND range(1, 5) AS i CREATE (:Job {title:'background build ' + i})" ).consume();
+
+            // When a job is submitted, it returns at once
+            long jobId = session.run( "CALL chineseFulltextIndex.submitIndexJob(['Job'], [], {batchSize:2})" ).single().get( "jobId" ).asLong();
+
+            // Then it finishes in the background with every node indexed
+            Record status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            for ( int i = 0; i < 100 && !"DONE".equals( status.get( "state" ).asString() ); i++ )
+            {
+                Thread.sleep( 100 );
+                status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            }
+            assertThat( status.get( "state" ).asString(), equalTo( "DONE" ) );
+            assertThat( status.get( "indexed" ).asLong(), equalTo( 5L ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Job', ['title'], 'background')" ).list().size(), equalTo( 5 ) );
+
+            // And a finished job does not run again
+            try
+            {
+                session.run( "CALL chineseFulltextIndex.resumeIndexJob({id})", parameters( "id", jobId ) ).consume();
+                fail( "Should not resume a finished job" );
+            }
+            catch ( ClientException e )
+            {
+                assertThat( e.getMessage().contains( "only cancelled or failed jobs resume" ), equalTo( true ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldResumeACancelledIndexJobFromItsCheckpoint() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a slow job over more nodes than it indexes in a moment
+            session.run( "UNWIND range(1, 40) AS i CREATE (:Resume {title:'resumed build ' + i})" ).consume();
+            long jobId = session.run( "CALL chineseFulltextIndex.submitIndexJob(['Resume'], [], {batchSize:5, nodesPerSecond:20})" ).single().get( "jobId" ).asLong();
+            Record status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            for ( int i = 0; i < 100 && status.get( "indexed" ).asLong() < 10; i++ )
+            {
+                Thread.sleep( 100 );
+                status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            }
+
+            // When it is cancelled part way
+            session.run( "CALL chineseFulltextIndex.cancelIndexJob({id})", parameters( "id", jobId ) ).consume();
+            for ( int i = 0; i < 100 && !"CANCELLED".equals( status.get( "state" ).asString() ); i++ )
+            {
+                Thread.sleep( 100 );
+                status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            }
+            assertThat( status.get( "state" ).asString(), equalTo( "CANCELLED" ) );
+            long firstRun = status.get( "indexed" ).asLong();
+            assertThat( firstRun > 0 && firstRun < 40, equalTo( true ) );
+            assertThat( status.get( "checkpoint" ).asLong() >= 0, equalTo( true ) );
+
+            // And resumed without the limit
+            session.run( "CALL chineseFulltextIndex.throttleIndexJob({id}, 0)", parameters( "id", jobId ) ).consume();
+            session.run( "CALL chineseFulltextIndex.resumeIndexJob({id})", parameters( "id", jobId ) ).consume();
+            for ( int i = 0; i < 100 && !"DONE".equals( status.get( "state" ).asString() ); i++ )
+            {
+                Thread.sleep( 100 );
+                status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            }
+
+            // Then the second run indexes only the nodes after the checkpoint, and every node is found
+            assertThat( status.get( "state" ).asString(), equalTo( "DONE" ) );
+            assertThat( status.get( "indexed" ).asLong(), equalTo( 40 - firstRun ) );
+            assertThat( status.get( "processed" ).asLong(), equalTo( 40L ) );
+            assertThat( session.run( "CALL chineseFulltextIndex.queryByProperty('Resume', ['title'], 'resumed')" ).list().size(), equalTo( 40 ) );
+        }
+    }
+
+    @Test
+    public void shouldThrottleAnIndexJob() throws Throwable
+    {
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            // Given a job limited to 5 nodes a second
+            session.run( "UNWIND range(1, 20) AS i CREATE (:Throttle {title:'throttled build ' + i})" ).consume();
+            Record status = session.run( "CALL chineseFulltextIndex.submitIndexJob(['Throttle'], [], {batchSize:2, nodesPerSecond:5})" ).single();
+            long jobId = status.get( "jobId" ).asLong();
+            assertThat( status.get( "throttle" ).asLong(), equalTo( 5L ) );
+
+            // When it has run for a moment
+            Thread.sleep( 1000 );
+
+            // Then it has indexed no more than the limit allows
+            status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            assertThat( status.get( "indexed" ).asLong() < 20, equalTo( true ) );
+            assertThat( status.get( "state" ).asString(), equalTo( "RUNNING" ) );
+
+            // And lifting the limit lets it finish
+            status = session.run( "CALL chineseFulltextIndex.throttleIndexJob({id}, 0)", parameters( "id", jobId ) ).single();
+            assertThat( status.get( "throttle" ).asLong(), equalTo( 0L ) );
+            for ( int i = 0; i < 100 && !"DONE".equals( status.get( "state" ).asString() ); i++ )
+            {
+                Thread.sleep( 100 );
+                status = session.run( "CALL chineseFulltextIndex.indexJobStatus({id})", parameters( "id", jobId ) ).single();
+            }
+            assertThat( status.get( "state" ).asString(), equalTo( "DONE" ) );
+            assertThat( status.get( "indexed" ).asLong(), equalTo( 20L ) );
+        }
+    }
 }